@@ -0,0 +1,114 @@
+/*
+  * Copyright (C) 2012 WIMM Labs Incorporated
+ */
+package com.wimm.breaktime.schedule;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Measures BreakBatch throughput in users per second at 1M and 10M users,
+ * on one thread and on a fork/join pool with a thread per core, after checking a
+ * sample of the batch results against BreakSchedule.
+ *
+ * Build and run from the project root, 10M users need about 400MB of heap:
+ *   javac -d bin/bench src/com/wimm/breaktime/schedule/*.java server/com/wimm/breaktime/schedule/*.java bench/com/wimm/breaktime/schedule/*.java
+ *   java -Xmx1g -cp bin/bench com.wimm.breaktime.schedule.BatchBenchmark [users...]
+ */
+public class BatchBenchmark {
+    private static final int[] DEFAULT_USERS = { 1000000, 10000000 };
+    private static final int ROUNDS = 5;
+    private static final int CHECKED_USERS = 20000;
+
+    // 2012-01-02 09:30 UTC, a Monday.
+    private static final long NOW_EPOCH_MINUTE = BreakSchedule.epochDay(2012, 1, 2) * (long) BreakSchedule.MINS_PER_DAY + 570;
+
+    public static void main(String[] args) {
+        int[] sizes = DEFAULT_USERS;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            System.out.println("users        1 thread users/s   " + threads + " threads users/s");
+            for (int size : sizes) {
+                run(size, pool);
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void run(int size, ForkJoinPool pool) {
+        Random random = new Random(size);
+        int[] start = new int[size];
+        int[] end = new int[size];
+        int[] code = new int[size];
+        int[] interval = new int[size];
+        boolean[] enabled = new boolean[size];
+        int[] offset = new int[size];
+        for (int i = 0; i < size; i++) {
+            start[i] = random.nextInt(48) * 30;
+            end[i] = random.nextInt(48) * 30;
+            code[i] = 1 + random.nextInt(3);
+            interval[i] = random.nextInt(8) == 0 ? 1 + random.nextInt(240) : 15 * (1 + random.nextInt(8));
+            enabled[i] = random.nextInt(10) != 0;
+            offset[i] = (random.nextInt(27 * 4) - 12 * 4) * 15;
+        }
+        BreakBatch batch = new BreakBatch(start, end, code, interval, enabled, offset);
+        long[] fireTimes = new long[size];
+
+        batch.computeNextFireTimes(NOW_EPOCH_MINUTE, fireTimes, 0, size);
+        check(batch, start, end, code, interval, enabled, offset, fireTimes, random);
+
+        long single = Long.MAX_VALUE;
+        long parallel = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long begin = System.nanoTime();
+            batch.computeNextFireTimes(NOW_EPOCH_MINUTE + round, fireTimes, 0, size);
+            single = Math.min(single, System.nanoTime() - begin);
+
+            begin = System.nanoTime();
+            batch.computeNextFireTimes(NOW_EPOCH_MINUTE + round, fireTimes, pool);
+            parallel = Math.min(parallel, System.nanoTime() - begin);
+        }
+        System.out.println(String.format("%8d %20.0f %20.0f", size, size * 1e9 / single, size * 1e9 / parallel));
+    }
+
+    // Compare random users with the next break of their compiled BreakSchedule,
+    // at now for the batch results and at any minute of a week for the
+    // per-user computation.
+    private static void check(BreakBatch batch, int[] start, int[] end, int[] code, int[] interval,
+            boolean[] enabled, int[] offset, long[] fireTimes, Random random) {
+        for (int n = 0; n < CHECKED_USERS; n++) {
+            int i = random.nextInt(batch.size());
+            BreakSchedule schedule = BreakSchedule.compile(start[i], end[i], code[i], interval[i]);
+            long expected = enabled[i] ? expectedFireMinute(schedule, offset[i], NOW_EPOCH_MINUTE) : BreakBatch.NO_FIRE;
+            check(i, expected == BreakBatch.NO_FIRE ? expected : expected * LocalClock.MS_PER_MIN, fireTimes[i]);
+
+            long now = NOW_EPOCH_MINUTE + random.nextInt(BreakSchedule.MINS_PER_WEEK);
+            check(i, expectedFireMinute(schedule, offset[i], now),
+                    BreakBatch.nextFireMinute(start[i], end[i], code[i], interval[i], offset[i], now));
+        }
+    }
+
+    private static long expectedFireMinute(BreakSchedule schedule, int offset, long nowEpochMinute) {
+        long local = nowEpochMinute + offset;
+        // 1970-01-01 was a Thursday.
+        int minuteOfWeek = (int) ((local + 4 * BreakSchedule.MINS_PER_DAY) % BreakSchedule.MINS_PER_WEEK);
+        int mins = schedule.minsToNextBreak(minuteOfWeek);
+        return mins == BreakSchedule.NO_BREAK ? BreakBatch.NO_FIRE : nowEpochMinute + mins;
+    }
+
+    private static void check(int user, long expected, long actual) {
+        if (actual != expected) {
+            throw new IllegalStateException("user " + user + ": " + actual + " != " + expected);
+        }
+    }
+}
@@ -0,0 +1,1072 @@
+/*
+  * Copyright (C) 2012 WIMM Labs Incorporated
+ */
+package com.wimm.breaktime.schedule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+
+/*
+ * Replays the alarm pipeline on a virtual clock over generated preference
+ * values and checks every delivered break against an oracle. The pipeline
+ * is BreakAlarms itself, the code BreakScheduler runs on a device, driven
+ * the way BreakTimeReceiver drives it: skip an alarm whose break already
+ * fired, deliver, arm the following break, recompute once the plan is used
+ * up, snooze, restore after a reboot and re-arm after the clock was set.
+ * Only the Store and the Device are virtual: a map of preferences and an
+ * AlarmManager delivering wake-up alarms with a seeded random latency and
+ * the others with the next time the device is awake anyway.
+ *
+ * A virtual user wears the watch in spells. While away, breaks are
+ * delivered unattended, as when BreakPresence finds nobody around. The
+ * device wakes up on its own now and then, more often while worn. Breaks
+ * get snoozed, the clock gets set and the device reboots now and then. A
+ * snooze must be refused when its reminder would fall outside work time.
+ *
+ * A third of the configs run several reminder streams in the same windows,
+ * merged into one plan: streams whose breaks coincide, a 1 minute stream
+ * against a 60 minute one, a stream too long for any window. Every break
+ * carries the bit set of its streams through the stored plan and the alarm.
+ *
+ * The oracle does not use this package: it expands the work windows day by
+ * day in local minutes and maps delivered breaks to local time through
+ * java.util.TimeZone, stream by stream, and checks the streams delivered
+ * with each break. A break on a local time skipped by a DST transition is
+ * expected right after the gap, a repeated local time fires once. Breaks the
+ * pipeline passes over by design, those already due when an alarm is
+ * delivered late, the clock jumps or the device boots, are excused but must
+ * not be delivered twice. Now and then the clock is set to a wrong date days
+ * ahead and back again: the breaks it passed over come due again and must be
+ * delivered then, those it delivered on the wrong date may come twice.
+ *
+ * Exits with status 1 if any break was missed, duplicated, unexpected,
+ * delivered with the wrong streams, before its tolerance window or, by a
+ * wake-up alarm the device was up for, later than the tolerance and the
+ * worst alarm latency, or a snooze was refused or accepted against the work
+ * windows, so it can gate changes to the scheduling code. The fire time
+ * error reported is over those on-time deliveries, not the ones after a
+ * reboot or a clock change. The defaults run in seconds, the sweep before a
+ * release takes "2000 730". Build and run from the project root:
+ *   javac -d bin/bench src/com/wimm/breaktime/schedule/*.java server/com/wimm/breaktime/schedule/*.java bench/com/wimm/breaktime/schedule/*.java
+ *   java -cp bin/bench com.wimm.breaktime.schedule.BreakSimulator [configs] [days] [seed]
+ */
+public class BreakSimulator {
+    private static final int DEFAULT_CONFIGS = 200;
+    private static final int DEFAULT_DAYS = 365;
+    private static final long DEFAULT_SEED = 2012;
+
+    // Simulation starts 2012-01-01 00:00 UTC.
+    private static final long START_TIME = BreakSchedule.epochDay(2012, 1, 1) * (long) BreakSchedule.MINS_PER_DAY * LocalClock.MS_PER_MIN;
+
+    private static final long MS_PER_HOUR = 60 * LocalClock.MS_PER_MIN;
+    private static final long MS_PER_DAY = BreakSchedule.MINS_PER_DAY * LocalClock.MS_PER_MIN;
+
+    // Lateness correction clamp of BreakAlarms: an alarm may go off this much
+    // before its tolerance window.
+    private static final long MAX_LATENESS_MS = 30000;
+
+    // Longest latency Device draws for a wake-up alarm.
+    private static final long MAX_LATENCY_MS = 60000;
+
+    private static final String[] ZONES = {
+        "UTC",
+        "America/Los_Angeles",
+        "Europe/London",
+        "America/Sao_Paulo",   // DST transitions at midnight
+        "Australia/Lord_Howe", // 30 minute DST shift
+        "Asia/Kolkata",
+        "Pacific/Chatham",     // +12:45 with DST
+    };
+
+    private static final int[] INTERVALS = { 1, 5, 7, 13, 20, 30, 45, 60, 90, 120, 240, 1440 };
+
+    // Reminder streams, like those of BreakTimeSettings, stream i having bit
+    // i. Oracle breaks are local minutes shifted left by STREAMS with the
+    // bits of their streams below.
+    private static final int STREAMS = 3;
+    private static final int STREAM_MASK = (1 << STREAMS) - 1;
+
+    // Delivery tolerances in minutes, none by default like the preference.
+    private static final int[] TOLERANCES = { 0, 0, 0, 1, 5, 15 };
+
+    // Percent of attended breaks snoozed.
+    private static final int SNOOZE_PERCENT = 3;
+
+    // Breaks within this many minutes of either end of the run are not compared.
+    private static final int EDGE_MINS = BreakSchedule.MINS_PER_DAY;
+
+    // Generated preference values. Windows are day, start, end triples in
+    // the format of WorkWeek, the legacy values expand to the same triples.
+    private static final class Config {
+        String mZone;
+        int mStart;
+        int mEnd;
+        int mWorkDaysCode;
+        // Interval of each stream, 0 when turned off. Stream 0 is always on.
+        int[] mIntervals = new int[STREAMS];
+        int[] mWindows;
+        boolean mCustomWindows;
+        int[] mExceptionDays;
+        String mExceptionDates;
+        int mTolerance;
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder(mZone).append(" every ").append(mIntervals[0]);
+            for (int stream = 1; stream < STREAMS; stream++) {
+                if (mIntervals[stream] > 0) {
+                    sb.append(" stream ").append(stream).append(" every ").append(mIntervals[stream]);
+                }
+            }
+            if (mCustomWindows) {
+                sb.append(" windows ").append(formatWindows(mWindows));
+            }
+            else {
+                sb.append(' ').append(mStart).append('-').append(mEnd).append(" code ").append(mWorkDaysCode);
+            }
+            if (mExceptionDates.length() > 0) {
+                sb.append(" except ").append(mExceptionDates);
+            }
+            if (mTolerance > 0) {
+                sb.append(" within ").append(mTolerance);
+            }
+            return sb.toString();
+        }
+    }
+
+    // Totals of a run, per zone and overall.
+    private static final class Report {
+        int mConfigs;
+        long mDays;
+        long mWakeups;
+        long mAvoided;
+        long mAlarmSets;
+        long mPlans;
+        long mExpected;
+        long mSkipped;
+        long mSuppressed;
+        long mSnoozed;
+        long mMissed;
+        long mDuplicated;
+        long mUnexpected;
+        long mWrongStreams;
+        long mTooEarly;
+        long mTooLate;
+        long mBadSnoozes;
+        long mRedelivered;
+        long mTimed;
+        long mErrorSumMs;
+        long mErrorMaxMs;
+
+        void add(Report r) {
+            mConfigs += r.mConfigs;
+            mDays += r.mDays;
+            mWakeups += r.mWakeups;
+            mAvoided += r.mAvoided;
+            mAlarmSets += r.mAlarmSets;
+            mPlans += r.mPlans;
+            mExpected += r.mExpected;
+            mSkipped += r.mSkipped;
+            mSuppressed += r.mSuppressed;
+            mSnoozed += r.mSnoozed;
+            mMissed += r.mMissed;
+            mDuplicated += r.mDuplicated;
+            mUnexpected += r.mUnexpected;
+            mWrongStreams += r.mWrongStreams;
+            mTooEarly += r.mTooEarly;
+            mTooLate += r.mTooLate;
+            mBadSnoozes += r.mBadSnoozes;
+            mRedelivered += r.mRedelivered;
+            mTimed += r.mTimed;
+            mErrorSumMs += r.mErrorSumMs;
+            mErrorMaxMs = Math.max(mErrorMaxMs, r.mErrorMaxMs);
+        }
+
+        boolean failed() {
+            return mMissed + mDuplicated + mUnexpected + mWrongStreams + mTooEarly + mTooLate + mBadSnoozes > 0;
+        }
+
+        void print(String name) {
+            System.out.println(String.format("%-20s %6d %7.2f %7.2f %7.2f %6.2f %8d %7d %7d %6d %5d %5d %5d %6d %5d %5d %5d %6d %7d %7d",
+                    name, mConfigs, (double) mWakeups / mDays, (double) mAvoided / mDays,
+                    (double) mAlarmSets / mDays, (double) mPlans / mDays, mExpected, mSkipped, mSuppressed, mSnoozed,
+                    mRedelivered, mMissed, mDuplicated, mUnexpected, mWrongStreams, mTooEarly, mTooLate, mBadSnoozes,
+                    mTimed == 0 ? 0 : mErrorSumMs / mTimed, mErrorMaxMs));
+        }
+    }
+
+    // Growable list of longs, the runs deliver up to a break a minute.
+    private static final class LongList {
+        long[] mValues = new long[1024];
+        int mSize;
+
+        void add(long value) {
+            if (mSize == mValues.length) {
+                long[] values = new long[mSize * 2];
+                System.arraycopy(mValues, 0, values, 0, mSize);
+                mValues = values;
+            }
+            mValues[mSize++] = value;
+        }
+    }
+
+    // Local preferences of the virtual device, they survive reboots.
+    private static final class MapStore implements BreakAlarms.Store {
+        final Map<String, Object> mValues = new HashMap<String, Object>();
+        final Report mReport;
+
+        MapStore(Report report) {
+            mReport = report;
+        }
+
+        public long getLong(String key, long defValue) {
+            Object value = mValues.get(key);
+            return value == null ? defValue : ((Long) value).longValue();
+        }
+
+        public int getInt(String key, int defValue) {
+            Object value = mValues.get(key);
+            return value == null ? defValue : ((Integer) value).intValue();
+        }
+
+        public boolean getBoolean(String key, boolean defValue) {
+            Object value = mValues.get(key);
+            return value == null ? defValue : ((Boolean) value).booleanValue();
+        }
+
+        public String getString(String key, String defValue) {
+            Object value = mValues.get(key);
+            return value == null ? defValue : (String) value;
+        }
+
+        public boolean contains(String key) {
+            return mValues.containsKey(key);
+        }
+
+        public BreakAlarms.Editor edit() {
+            return new MapEditor(this);
+        }
+    }
+
+    // Applies its changes on commit, like SharedPreferences.Editor.
+    private static final class MapEditor implements BreakAlarms.Editor {
+        // Marks a removed key among the changes.
+        private static final Object REMOVED = new Object();
+
+        final MapStore mStore;
+        final Map<String, Object> mChanges = new HashMap<String, Object>();
+
+        MapEditor(MapStore store) {
+            mStore = store;
+        }
+
+        public BreakAlarms.Editor putLong(String key, long value) {
+            mChanges.put(key, Long.valueOf(value));
+            return this;
+        }
+
+        public BreakAlarms.Editor putInt(String key, int value) {
+            mChanges.put(key, Integer.valueOf(value));
+            return this;
+        }
+
+        public BreakAlarms.Editor putBoolean(String key, boolean value) {
+            mChanges.put(key, Boolean.valueOf(value));
+            return this;
+        }
+
+        public BreakAlarms.Editor putString(String key, String value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        public BreakAlarms.Editor remove(String key) {
+            mChanges.put(key, REMOVED);
+            return this;
+        }
+
+        public void commit() {
+            for (Map.Entry<String, Object> change : mChanges.entrySet()) {
+                if (change.getValue() == REMOVED) {
+                    mStore.mValues.remove(change.getKey());
+                }
+                else {
+                    mStore.mValues.put(change.getKey(), change.getValue());
+                    if (change.getKey().equals(BreakAlarms.KEY_FIRE_TIMES)) {
+                        // Only a recomputed plan is saved.
+                        mStore.mReport.mPlans++;
+                    }
+                }
+            }
+        }
+    }
+
+    // A pending alarm and the extras of its intent.
+    private static final class Alarm {
+        long mTime;
+        boolean mWakeup;
+        long mFireTime;
+        long mTriggerTime;
+        int mStreams;
+        // Real time it was set at.
+        long mSetTime;
+        // Drawn when set, a wake-up alarm goes off this much after its time.
+        long mLatency;
+    }
+
+    // Virtual device: the wall clock, off real time once it was set, the
+    // time zone and AlarmManager.
+    private static final class Device implements BreakAlarms.Device {
+        final TimeZone mZone;
+        final Random mRandom;
+        final Report mReport;
+        final Alarm[] mAlarms = new Alarm[2];
+
+        long mRealTime;
+        long mClockOffset;
+        LocalClock mClock;
+
+        Device(TimeZone zone, Random random, Report report) {
+            mZone = zone;
+            mRandom = random;
+            mReport = report;
+        }
+
+        public long currentTimeMillis() {
+            return mRealTime + mClockOffset;
+        }
+
+        // LocalClock.getDefault for the simulated zone.
+        public LocalClock clock(long epochMinute) {
+            if (mClock == null || !mClock.covers(epochMinute)) {
+                mClock = LocalClock.forZone(mZone, epochMinute);
+            }
+            return mClock;
+        }
+
+        public void setAlarm(int id, long time, boolean wakeup, long fireTime, long triggerTime, int streams) {
+            Alarm alarm = new Alarm();
+            alarm.mTime = time;
+            alarm.mWakeup = wakeup;
+            alarm.mFireTime = fireTime;
+            alarm.mTriggerTime = triggerTime;
+            alarm.mStreams = streams;
+            alarm.mSetTime = mRealTime;
+            alarm.mLatency = latency();
+            mAlarms[id] = alarm;
+            mReport.mAlarmSets++;
+        }
+
+        public void cancelAlarm(int id) {
+            mAlarms[id] = null;
+        }
+
+        public boolean isAlarmSet(int id) {
+            return mAlarms[id] != null;
+        }
+
+        // Real time the pending wake-up alarm wakes the device, its latency
+        // after it came due, an alarm set in the past after it was set.
+        // Long.MAX_VALUE if none is pending.
+        long nextWakeupAlarm() {
+            long next = Long.MAX_VALUE;
+            for (int id = 0; id < mAlarms.length; id++) {
+                Alarm alarm = mAlarms[id];
+                if (alarm != null && alarm.mWakeup) {
+                    long due = Math.max(alarm.mSetTime, alarm.mTime - mClockOffset);
+                    next = Math.min(next, Math.max(mRealTime, due + alarm.mLatency));
+                }
+            }
+            return next;
+        }
+
+        // Remove and return the pending alarm due first on the wall clock,
+        // null if none is due.
+        Alarm takeDue() {
+            long now = currentTimeMillis();
+            int due = -1;
+            for (int id = 0; id < mAlarms.length; id++) {
+                Alarm alarm = mAlarms[id];
+                if (alarm != null && alarm.mTime <= now && (due < 0 || alarm.mTime < mAlarms[due].mTime)) {
+                    due = id;
+                }
+            }
+            if (due < 0) {
+                return null;
+            }
+            Alarm alarm = mAlarms[due];
+            mAlarms[due] = null;
+            return alarm;
+        }
+
+        void reboot() {
+            mAlarms[BreakAlarms.WAKEUP_ALARM] = null;
+            mAlarms[BreakAlarms.WINDOW_ALARM] = null;
+        }
+
+        // Mostly a few hundred ms, sometimes seconds when the device was busy.
+        long latency() {
+            int r = mRandom.nextInt(100);
+            if (r < 90) {
+                return 50 + mRandom.nextInt(400);
+            }
+            else if (r < 99) {
+                return 1000 + mRandom.nextInt(4000);
+            }
+            return 10000 + mRandom.nextInt((int) MAX_LATENCY_MS - 10000);
+        }
+    }
+
+    // One config on one virtual device: the user, the pipeline as
+    // BreakTimeReceiver drives it, and what it delivered.
+    private static final class Run {
+        final Config mConfig;
+        final TimeZone mZone;
+        final BreakSchedule[] mSchedules;
+        final long mTolerance;
+        final Random mRandom;
+        final Report mReport;
+        final MapStore mStore;
+        final Device mDevice;
+
+        // A new process after each boot, with a cold plan cache.
+        BreakAlarms mAlarms;
+        boolean mPresent = true;
+
+        // Fire times and streams of the delivered breaks, and the fire times
+        // of the snoozed ones armed.
+        final LongList mDelivered = new LongList();
+        final LongList mDeliveredStreams = new LongList();
+        final Set<Long> mSnoozes = new HashSet<Long>();
+
+        // Wall clock intervals (from, to] whose breaks the pipeline may pass
+        // over, and those the clock was set back over, whose breaks may be
+        // delivered twice.
+        final LongList mExcused = new LongList();
+        final LongList mRepeated = new LongList();
+
+        // How far the clock was set to a wrong date, to be set back by the
+        // next clock change, 0 if it was not.
+        long mWrongDateJump;
+
+        Run(Config config, BreakSchedule[] schedules, long tolerance, TimeZone zone, Random random, Report report) {
+            mConfig = config;
+            mZone = zone;
+            mSchedules = schedules;
+            mTolerance = tolerance;
+            mRandom = random;
+            mReport = report;
+            mStore = new MapStore(report);
+            mDevice = new Device(zone, random, report);
+        }
+
+        void run(long startTime, long endTime) {
+            mDevice.mRealTime = startTime;
+            mAlarms = new BreakAlarms(mStore, mDevice);
+            schedule();
+
+            long nextWake = startTime + wakeGap();
+            long nextToggle = startTime + spell();
+            long nextReboot = startTime + days(5, 60);
+            long nextTimeSet = startTime + days(3, 30);
+            while (true) {
+                long alarmTime = mDevice.nextWakeupAlarm();
+                long next = Math.min(Math.min(alarmTime, nextWake), Math.min(nextToggle, Math.min(nextReboot, nextTimeSet)));
+                if (next >= endTime) {
+                    break;
+                }
+                mDevice.mRealTime = Math.max(mDevice.mRealTime, next);
+                if (next == nextToggle) {
+                    mPresent = !mPresent;
+                    nextToggle = next + spell();
+                }
+                else if (next == nextReboot) {
+                    // Off for up to half a day, pending alarms are lost.
+                    mDevice.reboot();
+                    mDevice.mRealTime += LocalClock.MS_PER_MIN + (long) (mRandom.nextDouble() * 12 * MS_PER_HOUR);
+                    boot();
+                    deliverDue(true);
+                    nextReboot = mDevice.mRealTime + days(5, 60);
+                }
+                else if (next == nextTimeSet) {
+                    setClock();
+                    // A wrong date is noticed within the hour.
+                    nextTimeSet = mWrongDateJump != 0
+                            ? next + LocalClock.MS_PER_MIN + (long) (mRandom.nextDouble() * MS_PER_HOUR)
+                            : next + days(3, 30);
+                }
+                else {
+                    if (next == nextWake) {
+                        nextWake = next + wakeGap();
+                    }
+                    deliverDue(false);
+                }
+            }
+        }
+
+        // Deliver every alarm due, as the device is awake. Disrupted when it
+        // was off or the clock jumped, so the alarms are not on time.
+        void deliverDue(boolean disrupted) {
+            Alarm alarm;
+            while ((alarm = mDevice.takeDue()) != null) {
+                deliver(alarm, disrupted);
+            }
+        }
+
+        // BreakTimeReceiver ACTION_POST_NOTIFICATION
+        void deliver(Alarm alarm, boolean disrupted) {
+            if (mAlarms.isFired(alarm.mFireTime)) {
+                // The other alarm of the tolerance window already delivered it.
+                return;
+            }
+            long now = mDevice.currentTimeMillis();
+            if (mSnoozes.remove(Long.valueOf(alarm.mFireTime))) {
+                mReport.mSnoozed++;
+            }
+            else {
+                mDelivered.add(alarm.mFireTime);
+                mDeliveredStreams.add(alarm.mStreams);
+                if (!mPresent) {
+                    mReport.mSuppressed++;
+                }
+                if (now < alarm.mFireTime - mTolerance - MAX_LATENESS_MS) {
+                    mReport.mTooEarly++;
+                }
+                if (alarm.mWakeup) {
+                    mReport.mWakeups++;
+                    if (!disrupted) {
+                        if (now > alarm.mFireTime + mTolerance + MAX_LATENCY_MS) {
+                            mReport.mTooLate++;
+                        }
+                        long error = Math.abs(now - alarm.mFireTime);
+                        mReport.mTimed++;
+                        mReport.mErrorSumMs += error;
+                        mReport.mErrorMaxMs = Math.max(mReport.mErrorMaxMs, error);
+                    }
+                }
+                else {
+                    mReport.mAvoided++;
+                }
+            }
+
+            // Breaks already due are passed over.
+            excuse(alarm.mFireTime, now);
+            if (!mAlarms.onDelivered(alarm.mFireTime, alarm.mStreams, alarm.mTriggerTime, alarm.mWakeup, now, mPresent)) {
+                schedule();
+            }
+
+            // BreakTimeReceiver ACTION_SNOOZE
+            if (mPresent && mRandom.nextInt(100) < SNOOZE_PERCENT) {
+                // Snoozed from the planned time of a break delivered early.
+                long after = Math.max(now, alarm.mFireTime);
+                long snoozeTime = after + (5 + mRandom.nextInt(11)) * LocalClock.MS_PER_MIN;
+                boolean snoozed = mAlarms.snooze(mSchedules, snoozeTime - after);
+                // Refused when the break is stale or the reminder would
+                // fall outside work time.
+                boolean allowed = now - alarm.mFireTime <= BreakAlarms.SNOOZE_MAX_AGE_MS
+                        && isWorkTime(mConfig, mZone, snoozeTime / LocalClock.MS_PER_MIN);
+                if (snoozed != allowed) {
+                    mReport.mBadSnoozes++;
+                }
+                BreakPlan plan = mAlarms.loadPlan();
+                if (mStore.getLong(BreakAlarms.KEY_ARMED_TIME, 0) == snoozeTime
+                        && (plan == null || plan.nextFireAfter(after) != snoozeTime)) {
+                    mSnoozes.add(Long.valueOf(snoozeTime));
+                }
+            }
+        }
+
+        // BreakTimeReceiver ACTION_BOOT_COMPLETED
+        void boot() {
+            mAlarms = new BreakAlarms(mStore, mDevice);
+            excuse(mStore.getLong(BreakAlarms.KEY_LAST_FIRED, 0), mDevice.currentTimeMillis());
+            if (!mAlarms.restore(BreakPlan.fingerprint(mSchedules))) {
+                schedule();
+            }
+        }
+
+        // BreakTimeReceiver ACTION_TIME_CHANGED, after the clock was set by a
+        // few seconds to a few hours, back towards real time once far off,
+        // or to a wrong date a few days ahead and back.
+        void setClock() {
+            long jump;
+            if (mWrongDateJump != 0) {
+                jump = -mWrongDateJump;
+                mWrongDateJump = 0;
+            }
+            else if (mRandom.nextInt(5) == 0) {
+                jump = days(1, 4);
+                mWrongDateJump = jump;
+            }
+            else {
+                jump = mRandom.nextBoolean()
+                        ? 1000 + mRandom.nextInt(120000)
+                        : LocalClock.MS_PER_MIN + (long) (mRandom.nextDouble() * 3 * MS_PER_HOUR);
+                if (mDevice.mClockOffset > 2 * MS_PER_HOUR || mDevice.mClockOffset > -2 * MS_PER_HOUR && mRandom.nextBoolean()) {
+                    jump = -jump;
+                }
+            }
+            long before = mDevice.currentTimeMillis();
+            mDevice.mClockOffset += jump;
+            long now = mDevice.currentTimeMillis();
+            long lastFired = mStore.getLong(BreakAlarms.KEY_LAST_FIRED, 0);
+            if (now < before) {
+                // The local times set back over come again and breaks passed
+                // over the first time are due, unless the last fired break
+                // lies within an early delivery ahead. Set back further, it
+                // fired on a wrong clock and those delivered up to it may
+                // come twice.
+                long again = now;
+                if (lastFired > now + mTolerance + MAX_LATENESS_MS) {
+                    mRepeated.add(now);
+                    mRepeated.add(Math.max(before, lastFired));
+                }
+                else {
+                    again = Math.max(now, lastFired);
+                }
+                for (int i = 0; i < mExcused.mSize; i += 2) {
+                    if (mExcused.mValues[i + 1] > again) {
+                        mExcused.mValues[i + 1] = Math.max(mExcused.mValues[i], again);
+                    }
+                }
+            }
+            // Re-armed from the last fired break, a pending break now in the
+            // past is passed over, whichever way the clock moved.
+            excuse(lastFired, now);
+            // Alarms the clock jumped past go off before or after the broadcast.
+            if (mRandom.nextBoolean()) {
+                deliverDue(true);
+            }
+            if (!mAlarms.rearm()) {
+                schedule();
+            }
+            deliverDue(true);
+        }
+
+        // BreakScheduler.requestSchedule
+        void schedule() {
+            mAlarms.schedule(mSchedules, mTolerance);
+        }
+
+        void excuse(long from, long to) {
+            if (to / LocalClock.MS_PER_MIN > from / LocalClock.MS_PER_MIN) {
+                mExcused.add(from);
+                mExcused.add(to);
+            }
+        }
+
+        // The device wakes every few minutes while worn, rarely otherwise.
+        long wakeGap() {
+            return mPresent
+                    ? LocalClock.MS_PER_MIN + (long) (mRandom.nextDouble() * 20 * LocalClock.MS_PER_MIN)
+                    : 15 * LocalClock.MS_PER_MIN + (long) (mRandom.nextDouble() * 2 * MS_PER_HOUR);
+        }
+
+        // Worn from half an hour to 10 hours at a time, off from 10 minutes
+        // to 12 hours.
+        long spell() {
+            return mPresent
+                    ? 30 * LocalClock.MS_PER_MIN + (long) (mRandom.nextDouble() * 10 * MS_PER_HOUR)
+                    : 10 * LocalClock.MS_PER_MIN + (long) (mRandom.nextDouble() * 12 * MS_PER_HOUR);
+        }
+
+        long days(int min, int max) {
+            return (long) ((min + mRandom.nextDouble() * (max - min)) * MS_PER_DAY);
+        }
+    }
+
+    public static void main(String[] args) {
+        int configs = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CONFIGS;
+        int days = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_DAYS;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_SEED;
+
+        Random random = new Random(seed);
+        Report[] zoneReports = new Report[ZONES.length];
+        for (int z = 0; z < ZONES.length; z++) {
+            zoneReports[z] = new Report();
+        }
+
+        long begin = System.nanoTime();
+        int failures = 0;
+        for (int i = 0; i < configs; i++) {
+            int z = random.nextInt(ZONES.length);
+            Config config = generate(random, ZONES[z], days);
+            Report report = run(config, days, new Random(random.nextLong()));
+            zoneReports[z].add(report);
+            if (report.failed() && failures++ < 10) {
+                System.out.println("FAIL " + config + ": missed " + report.mMissed + " duplicated "
+                        + report.mDuplicated + " unexpected " + report.mUnexpected + " wrong streams "
+                        + report.mWrongStreams + " too early " + report.mTooEarly + " too late " + report.mTooLate
+                        + " bad snoozes " + report.mBadSnoozes);
+            }
+        }
+        long elapsedMs = (System.nanoTime() - begin) / 1000000;
+
+        System.out.println("zone                configs  wake/d  nowk/d  sets/d plans/d   breaks skipped  unseen snooze again  miss   dup unexpt strms early  late snzerr err avg err max");
+        Report total = new Report();
+        for (int z = 0; z < ZONES.length; z++) {
+            zoneReports[z].print(ZONES[z]);
+            total.add(zoneReports[z]);
+        }
+        total.print("total");
+        System.out.println(configs + " configs x " + days + " days in " + elapsedMs + " ms, seed " + seed);
+        if (total.failed()) {
+            System.exit(1);
+        }
+    }
+
+    private static Config generate(Random random, String zone, int days) {
+        Config config = new Config();
+        config.mZone = zone;
+        // Mostly whole or half hours like the preference panel, some arbitrary.
+        config.mStart = random.nextBoolean() ? random.nextInt(48) * 30 : random.nextInt(BreakSchedule.MINS_PER_DAY);
+        config.mEnd = random.nextBoolean() ? random.nextInt(48) * 30 : random.nextInt(BreakSchedule.MINS_PER_DAY);
+        config.mWorkDaysCode = 1 + random.nextInt(3);
+        config.mIntervals[0] = randomInterval(random);
+        if (random.nextInt(3) == 0) {
+            int pattern = random.nextInt(4);
+            if (pattern == 0) {
+                // Every break of stream 0 coincides with one of stream 1,
+                // and stream 2 with some of both.
+                int interval = config.mIntervals[0];
+                int divisor = 1 + random.nextInt(Math.min(interval, 12));
+                while (interval % divisor != 0) {
+                    divisor--;
+                }
+                config.mIntervals[1] = interval / divisor;
+                config.mIntervals[2] = random.nextBoolean() ? interval * (2 + random.nextInt(2)) : 0;
+            }
+            else if (pattern == 1) {
+                // A break every minute against one an hour.
+                config.mIntervals[0] = 60;
+                config.mIntervals[1] = 1;
+            }
+            else if (pattern == 2) {
+                // No window is long enough for a break of stream 2.
+                config.mIntervals[1] = random.nextBoolean() ? randomInterval(random) : 0;
+                config.mIntervals[2] = BreakSchedule.MINS_PER_DAY + 1;
+            }
+            else {
+                config.mIntervals[1] = randomInterval(random);
+                config.mIntervals[2] = randomInterval(random);
+            }
+        }
+
+        config.mCustomWindows = random.nextInt(4) == 0;
+        if (config.mCustomWindows) {
+            int count = 1 + random.nextInt(6);
+            config.mWindows = new int[count * 3];
+            for (int w = 0; w < count; w++) {
+                config.mWindows[w * 3] = random.nextInt(7);
+                config.mWindows[w * 3 + 1] = random.nextInt(BreakSchedule.MINS_PER_DAY);
+                config.mWindows[w * 3 + 2] = random.nextInt(BreakSchedule.MINS_PER_DAY + 1);
+            }
+        }
+        else {
+            int count = 0;
+            int[] windows = new int[7 * 3];
+            for (int day = 0; day < 7; day++) {
+                // Spelled out rather than WorkWeek.isWorkDay, the oracle must not share code.
+                boolean workDay = day >= 1 && day <= 5
+                        || day == 6 && config.mWorkDaysCode >= 2
+                        || day == 0 && config.mWorkDaysCode == 3;
+                if (workDay) {
+                    windows[count++] = day;
+                    windows[count++] = config.mStart;
+                    windows[count++] = config.mEnd;
+                }
+            }
+            config.mWindows = new int[count];
+            System.arraycopy(windows, 0, config.mWindows, 0, count);
+        }
+
+        StringBuilder dates = new StringBuilder();
+        int exceptions = random.nextInt(3) == 0 ? 1 + random.nextInt(10) : 0;
+        config.mExceptionDays = new int[exceptions];
+        int firstDay = (int) (START_TIME / LocalClock.MS_PER_MIN / BreakSchedule.MINS_PER_DAY);
+        for (int e = 0; e < exceptions; e++) {
+            config.mExceptionDays[e] = firstDay + random.nextInt(days);
+            if (e > 0) {
+                dates.append(',');
+            }
+            dates.append(formatDate(config.mExceptionDays[e]));
+        }
+        Arrays.sort(config.mExceptionDays);
+        config.mExceptionDates = dates.toString();
+        config.mTolerance = TOLERANCES[random.nextInt(TOLERANCES.length)];
+        return config;
+    }
+
+    private static int randomInterval(Random random) {
+        return random.nextInt(4) == 0 ? 1 + random.nextInt(300) : INTERVALS[random.nextInt(INTERVALS.length)];
+    }
+
+    private static Report run(Config config, int days, Random random) {
+        WorkWeek workWeek = config.mCustomWindows
+                ? WorkWeek.parse(formatWindows(config.mWindows))
+                : WorkWeek.legacy(config.mStart, config.mEnd, config.mWorkDaysCode);
+        int[] exceptionDays = BreakSchedule.parseExceptionDays(config.mExceptionDates);
+        BreakSchedule[] schedules = new BreakSchedule[STREAMS];
+        for (int stream = 0; stream < STREAMS; stream++) {
+            if (config.mIntervals[stream] > 0) {
+                schedules[stream] = BreakSchedule.compile(workWeek, config.mIntervals[stream], exceptionDays);
+            }
+        }
+        TimeZone zone = TimeZone.getTimeZone(config.mZone);
+
+        Report report = new Report();
+        report.mConfigs = 1;
+        report.mDays = days;
+
+        Run run = new Run(config, schedules, config.mTolerance * LocalClock.MS_PER_MIN, zone, random,
+                report);
+        run.run(START_TIME, START_TIME + days * MS_PER_DAY);
+
+        // Compare in local minutes, away from both ends of the run.
+        long from = localMinute(zone, START_TIME / LocalClock.MS_PER_MIN) + EDGE_MINS;
+        long to = localMinute(zone, run.mDevice.currentTimeMillis() / LocalClock.MS_PER_MIN) - EDGE_MINS;
+        long[] expected = expectedBreaks(config, zone, from, to);
+        long[] delivered = new long[run.mDelivered.mSize];
+        for (int i = 0; i < delivered.length; i++) {
+            long local = localMinute(zone, run.mDelivered.mValues[i] / LocalClock.MS_PER_MIN);
+            delivered[i] = local << STREAMS | run.mDeliveredStreams.mValues[i];
+        }
+        compare(expected, delivered, excusedIntervals(zone, run.mExcused), excusedIntervals(zone, run.mRepeated),
+                from, to, report);
+        return report;
+    }
+
+    // Oracle: local minutes of every break in [from, to) with the bits of
+    // the streams due at it, sorted and unique.
+    private static long[] expectedBreaks(Config config, TimeZone zone, long from, long to) {
+        LongList breaks = new LongList();
+        for (int stream = 0; stream < STREAMS; stream++) {
+            if (config.mIntervals[stream] > 0) {
+                expectedBreaks(config, config.mIntervals[stream], 1 << stream, zone, from, to, breaks);
+            }
+        }
+
+        long[] sorted = new long[breaks.mSize];
+        System.arraycopy(breaks.mValues, 0, sorted, 0, sorted.length);
+        Arrays.sort(sorted);
+        int n = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (n > 0 && sorted[n - 1] >> STREAMS == sorted[i] >> STREAMS) {
+                // Breaks of several streams on the same minute are one.
+                sorted[n - 1] |= sorted[i] & STREAM_MASK;
+            }
+            else {
+                sorted[n++] = sorted[i];
+            }
+        }
+        long[] result = new long[n];
+        System.arraycopy(sorted, 0, result, 0, n);
+        return result;
+    }
+
+    // Add the breaks of one stream, an interval apart, to breaks.
+    private static void expectedBreaks(Config config, int interval, int streams, TimeZone zone, long from, long to,
+            LongList breaks) {
+        int[] windows = config.mWindows;
+        long firstDay = from / BreakSchedule.MINS_PER_DAY - 1;
+        long lastDay = to / BreakSchedule.MINS_PER_DAY;
+        for (long day = firstDay; day <= lastDay; day++) {
+            // 1970-01-01 was a Thursday.
+            int dayOfWeek = (int) ((day + 4) % 7);
+            for (int w = 0; w < windows.length; w += 3) {
+                if (windows[w] != dayOfWeek) {
+                    continue;
+                }
+                long start = day * BreakSchedule.MINS_PER_DAY + windows[w + 1];
+                int length = windows[w + 2] - windows[w + 1];
+                if (length <= 0) {
+                    length += BreakSchedule.MINS_PER_DAY;
+                }
+                for (int m = interval; m <= length; m += interval) {
+                    long local = existingLocalMinute(zone, start + m);
+                    if (local >= from && local < to
+                            && Arrays.binarySearch(config.mExceptionDays, (int) (local / BreakSchedule.MINS_PER_DAY)) < 0) {
+                        breaks.add(local << STREAMS | streams);
+                    }
+                }
+            }
+        }
+    }
+
+    // Oracle: true if the epoch minute lies within a work window, ends
+    // included, on a local day that is not an exception day.
+    private static boolean isWorkTime(Config config, TimeZone zone, long epochMinute) {
+        long local = localMinute(zone, epochMinute);
+        long localDay = local / BreakSchedule.MINS_PER_DAY;
+        if (Arrays.binarySearch(config.mExceptionDays, (int) localDay) >= 0) {
+            return false;
+        }
+        int[] windows = config.mWindows;
+        // A window of the day before may still be running.
+        for (long day = localDay - 1; day <= localDay; day++) {
+            int dayOfWeek = (int) ((day + 4) % 7);
+            for (int w = 0; w < windows.length; w += 3) {
+                if (windows[w] != dayOfWeek) {
+                    continue;
+                }
+                long start = day * BreakSchedule.MINS_PER_DAY + windows[w + 1];
+                int length = windows[w + 2] - windows[w + 1];
+                if (length <= 0) {
+                    length += BreakSchedule.MINS_PER_DAY;
+                }
+                if (local >= start && local <= start + length) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // The local minute itself, or for one skipped by a DST gap the first
+    // local minute after the gap.
+    private static long existingLocalMinute(TimeZone zone, long local) {
+        int before = offset(zone, local - BreakSchedule.MINS_PER_DAY);
+        int after = offset(zone, local + BreakSchedule.MINS_PER_DAY);
+        if (offset(zone, local - before) == before || offset(zone, local - after) == after) {
+            return local;
+        }
+        // Find the transition minute by minute, the gap is at most a few hours.
+        long epochMinute = local - after;
+        while (offset(zone, epochMinute) != after) {
+            epochMinute++;
+        }
+        return localMinute(zone, epochMinute);
+    }
+
+    // The excused or repeated wall clock intervals as sorted, disjoint local minute
+    // intervals (from, to]. One crossing a DST fall back runs to the latest
+    // local minute before it.
+    private static long[] excusedIntervals(TimeZone zone, LongList excused) {
+        List<long[]> intervals = new ArrayList<long[]>();
+        for (int i = 0; i < excused.mSize; i += 2) {
+            long fromMinute = excused.mValues[i] / LocalClock.MS_PER_MIN;
+            long toMinute = excused.mValues[i + 1] / LocalClock.MS_PER_MIN;
+            long from = localMinute(zone, fromMinute);
+            long to = Math.max(localMinute(zone, toMinute), from + toMinute - fromMinute);
+            intervals.add(new long[] { from, to });
+        }
+        Collections.sort(intervals, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : a[0] > b[0] ? 1 : 0;
+            }
+        });
+
+        LongList merged = new LongList();
+        for (long[] interval : intervals) {
+            if (merged.mSize > 0 && interval[0] <= merged.mValues[merged.mSize - 1]) {
+                merged.mValues[merged.mSize - 1] = Math.max(merged.mValues[merged.mSize - 1], interval[1]);
+            }
+            else {
+                merged.add(interval[0]);
+                merged.add(interval[1]);
+            }
+        }
+        long[] result = new long[merged.mSize];
+        System.arraycopy(merged.mValues, 0, result, 0, result.length);
+        return result;
+    }
+
+    private static boolean isExcused(long[] excused, long local) {
+        // Last interval starting before the minute.
+        int low = 0;
+        int high = excused.length / 2 - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (excused[mid * 2] < local) {
+                found = mid;
+                low = mid + 1;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        return found >= 0 && local <= excused[found * 2 + 1];
+    }
+
+    private static void compare(long[] expected, long[] delivered, long[] excused, long[] repeated, long from, long to,
+            Report report) {
+        long[] sorted = delivered.clone();
+        Arrays.sort(sorted);
+        int e = 0;
+        for (int d = 0; d < sorted.length; d++) {
+            long local = sorted[d] >> STREAMS;
+            if (local < from || local >= to) {
+                continue;
+            }
+            if (d > 0 && sorted[d - 1] >> STREAMS == local) {
+                if (isExcused(repeated, local)) {
+                    report.mRedelivered++;
+                }
+                else {
+                    report.mDuplicated++;
+                }
+                continue;
+            }
+            while (e < expected.length && expected[e] >> STREAMS < local) {
+                countMissing(expected[e++] >> STREAMS, excused, report);
+            }
+            if (e < expected.length && expected[e] >> STREAMS == local) {
+                if (expected[e] != sorted[d]) {
+                    report.mWrongStreams++;
+                }
+                e++;
+            }
+            else {
+                report.mUnexpected++;
+            }
+        }
+        while (e < expected.length) {
+            countMissing(expected[e++] >> STREAMS, excused, report);
+        }
+        report.mExpected += expected.length;
+    }
+
+    private static void countMissing(long local, long[] excused, Report report) {
+        if (isExcused(excused, local)) {
+            report.mSkipped++;
+        }
+        else {
+            report.mMissed++;
+        }
+    }
+
+    private static long localMinute(TimeZone zone, long epochMinute) {
+        return epochMinute + offset(zone, epochMinute);
+    }
+
+    private static int offset(TimeZone zone, long epochMinute) {
+        return (int) (zone.getOffset(epochMinute * LocalClock.MS_PER_MIN) / LocalClock.MS_PER_MIN);
+    }
+
+    private static String formatWindows(int[] windows) {
+        StringBuilder sb = new StringBuilder();
+        for (int w = 0; w < windows.length; w += 3) {
+            if (w > 0) {
+                sb.append(',');
+            }
+            sb.append(windows[w]).append(':').append(windows[w + 1]).append('-').append(windows[w + 2]);
+        }
+        return sb.toString();
+    }
+
+    private static String formatDate(int epochDay) {
+        Calendar c = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        c.setTimeInMillis(epochDay * (long) BreakSchedule.MINS_PER_DAY * LocalClock.MS_PER_MIN);
+        return String.format("%04d%02d%02d", c.get(Calendar.YEAR), c.get(Calendar.MONTH) + 1, c.get(Calendar.DAY_OF_MONTH));
+    }
+}
@@ -0,0 +1,220 @@
+/*
+  * Copyright (C) 2012 WIMM Labs Incorporated
+ */
+package com.wimm.breaktime.schedule;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Runs BreakDispatcher on a virtual clock for a week with an in-memory sink
+ * that checks every delivered break against the plan the device would
+ * compute: each user fires on time, in order, with the right streams and
+ * without skipping a break. Users get legacy shifts and custom windows,
+ * exception days, several reminder streams and zones with daylight saving
+ * transitions during the week, one of them repeating half an hour. Reports
+ * breaks delivered per second, time per tick and the heap in use. With
+ * "virtual", the sink runs on BreakDispatcher.newVirtualSinkExecutor().
+ *
+ * Build and run from the project root:
+ *   javac -d bin/bench src/com/wimm/breaktime/schedule/*.java server/com/wimm/breaktime/schedule/*.java bench/com/wimm/breaktime/schedule/*.java
+ *   java -Xmx1g -cp bin/bench com.wimm.breaktime.schedule.DispatcherBenchmark [users] [days] [virtual]
+ */
+public class DispatcherBenchmark {
+    private static final int DEFAULT_USERS = 1000000;
+    private static final int DEFAULT_DAYS = 7;
+
+    // 2012-03-25 00:00 UTC: Europe springs forward an hour on the first day,
+    // Sydney and Lord Howe fall back an hour and half an hour on the 7th.
+    private static final long START_EPOCH_MINUTE = BreakSchedule.epochDay(2012, 3, 25) * (long) BreakSchedule.MINS_PER_DAY;
+
+    private static final String[] ZONE_IDS = {
+            "UTC", "Europe/London", "Europe/Berlin", "America/Los_Angeles", "Australia/Sydney",
+            "Australia/Lord_Howe", "Asia/Kolkata", "America/St_Johns", "Pacific/Chatham", "Asia/Tokyo",
+    };
+
+    // Distinct settings shared by the users.
+    private static final int SCHEDULE_SETS = 512;
+    private static final int STREAMS = 3;
+
+    // Records the last break of each user and counts those not matching the
+    // first break BreakPlan computes after the previous one.
+    private static final class MemorySink implements BreakDispatcher.Sink {
+        private final BreakSchedule[][] mScheduleSets;
+        private final TimeZone[] mZones;
+        private final int[] mScheduleSetIndexes;
+        private final int[] mZoneIndexes;
+        // Clock of each zone, racing threads only rebuild it again.
+        private final LocalClock[] mClocks;
+        private final long[] mLastFired;
+        private final int[] mErrors;
+        private volatile long mTick;
+
+        MemorySink(BreakSchedule[][] scheduleSets, TimeZone[] zones, int[] scheduleSetIndexes, int[] zoneIndexes,
+                long startEpochMinute) {
+            mScheduleSets = scheduleSets;
+            mZones = zones;
+            mScheduleSetIndexes = scheduleSetIndexes;
+            mZoneIndexes = zoneIndexes;
+            mClocks = new LocalClock[zones.length];
+            mLastFired = new long[scheduleSetIndexes.length];
+            mErrors = new int[scheduleSetIndexes.length];
+            for (int i = 0; i < mLastFired.length; i++) {
+                mLastFired[i] = startEpochMinute;
+            }
+        }
+
+        public void deliver(int user, long fireEpochMinute, int streams) {
+            long last = mLastFired[user];
+            int zone = mZoneIndexes[user];
+            LocalClock clock = mClocks[zone];
+            if (clock == null || !clock.covers(last)) {
+                clock = LocalClock.forZone(mZones[zone], last);
+                mClocks[zone] = clock;
+            }
+            BreakPlan plan = BreakPlan.compute(mScheduleSets[mScheduleSetIndexes[user]], clock, last, 0, 1);
+            long fireTime = plan.nextFireAfter(last * LocalClock.MS_PER_MIN);
+            if (fireEpochMinute != mTick || fireTime != fireEpochMinute * LocalClock.MS_PER_MIN
+                    || plan.streamsAt(fireTime) != streams) {
+                mErrors[user]++;
+            }
+            mLastFired[user] = fireEpochMinute;
+        }
+
+        long errors() {
+            long errors = 0;
+            for (int e : mErrors) {
+                errors += e;
+            }
+            return errors;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_USERS;
+        int days = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_DAYS;
+        boolean virtualSink = args.length > 2 && args[2].equals("virtual");
+
+        Random random = new Random(users);
+        BreakSchedule[][] scheduleSets = new BreakSchedule[SCHEDULE_SETS][];
+        for (int i = 0; i < SCHEDULE_SETS; i++) {
+            scheduleSets[i] = randomScheduleSet(random, days);
+        }
+        TimeZone[] zones = new TimeZone[ZONE_IDS.length];
+        for (int i = 0; i < zones.length; i++) {
+            zones[i] = TimeZone.getTimeZone(ZONE_IDS[i]);
+        }
+        int[] scheduleSetIndexes = new int[users];
+        int[] zoneIndexes = new int[users];
+        boolean[] enabled = new boolean[users];
+        for (int i = 0; i < users; i++) {
+            scheduleSetIndexes[i] = random.nextInt(SCHEDULE_SETS);
+            zoneIndexes[i] = random.nextInt(zones.length);
+            enabled[i] = random.nextInt(10) != 0;
+        }
+        BreakRoster roster = new BreakRoster(scheduleSets, zones, scheduleSetIndexes, zoneIndexes, enabled);
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ExecutorService sinkExecutor = virtualSink ? BreakDispatcher.newVirtualSinkExecutor() : null;
+        try {
+            MemorySink sink = new MemorySink(scheduleSets, zones, scheduleSetIndexes, zoneIndexes, START_EPOCH_MINUTE);
+            BreakDispatcher dispatcher = new BreakDispatcher(roster, sink, executor, sinkExecutor, threads,
+                    START_EPOCH_MINUTE);
+            long begin = System.nanoTime();
+            dispatcher.scheduleAll();
+            long scheduleNs = System.nanoTime() - begin;
+
+            // Churn: disabled users, settings edits and users moving to
+            // another zone while running.
+            long delivered = 0;
+            long ticks = days * (long) BreakSchedule.MINS_PER_DAY;
+            begin = System.nanoTime();
+            for (long tick = START_EPOCH_MINUTE + 1; tick <= START_EPOCH_MINUTE + ticks; tick++) {
+                sink.mTick = tick;
+                delivered += dispatcher.advance(tick);
+                int user = random.nextInt(users);
+                int change = random.nextInt(4);
+                if (change == 0) {
+                    dispatcher.cancel(user);
+                    enabled[user] = false;
+                }
+                else {
+                    if (change == 2) {
+                        scheduleSetIndexes[user] = random.nextInt(SCHEDULE_SETS);
+                    }
+                    else if (change == 3) {
+                        zoneIndexes[user] = random.nextInt(zones.length);
+                    }
+                    enabled[user] = true;
+                    dispatcher.schedule(user);
+                }
+                sink.mLastFired[user] = tick;
+            }
+            long runNs = System.nanoTime() - begin;
+
+            // No user may have dropped out of the wheel.
+            long lost = 0;
+            for (int user = 0; user < users; user++) {
+                if (dispatcher.getFireMinute(user) != roster.nextFireMinute(user, START_EPOCH_MINUTE + ticks)) {
+                    lost++;
+                }
+            }
+
+            Runtime runtime = Runtime.getRuntime();
+            runtime.gc();
+            long heapMb = (runtime.totalMemory() - runtime.freeMemory()) >> 20;
+            System.out.println(String.format("%d users, %d threads%s: schedule all %d ms, %d breaks in %d days, %.0f breaks/s, %d us/tick",
+                    users, threads, virtualSink ? " and a virtual sink" : "", scheduleNs / 1000000, delivered, days, delivered * 1e9 / runNs, runNs / ticks / 1000));
+            System.out.println(String.format("pending %d, heap %d MB, errors %d, lost %d",
+                    dispatcher.getPendingCount(), heapMb, sink.errors(), lost));
+            if (sink.errors() > 0 || lost > 0) {
+                System.exit(1);
+            }
+        }
+        finally {
+            executor.shutdown();
+            if (sinkExecutor != null) {
+                sinkExecutor.shutdown();
+            }
+        }
+    }
+
+    // Settings of one or several streams, turned off at random, sharing a
+    // legacy shift or custom windows and exception days during the run.
+    private static BreakSchedule[] randomScheduleSet(Random random, int days) {
+        WorkWeek workWeek;
+        if (random.nextInt(3) != 0) {
+            workWeek = WorkWeek.legacy(random.nextInt(48) * 30, random.nextInt(48) * 30, 1 + random.nextInt(3));
+        }
+        else {
+            StringBuilder sb = new StringBuilder();
+            int count = 1 + random.nextInt(8);
+            for (int w = 0; w < count; w++) {
+                int start = random.nextInt(BreakSchedule.MINS_PER_DAY);
+                int end = (start + 30 + random.nextInt(16 * 60)) % BreakSchedule.MINS_PER_DAY;
+                sb.append(random.nextInt(7)).append(':').append(start).append('-').append(end).append(',');
+            }
+            workWeek = WorkWeek.parse(sb.toString());
+        }
+
+        int[] exceptionDays = new int[random.nextInt(4) == 0 ? 1 + random.nextInt(3) : 0];
+        long startDay = START_EPOCH_MINUTE / BreakSchedule.MINS_PER_DAY;
+        for (int i = 0; i < exceptionDays.length; i++) {
+            exceptionDays[i] = (int) startDay + random.nextInt(days + 1);
+        }
+        Arrays.sort(exceptionDays);
+
+        BreakSchedule[] schedules = new BreakSchedule[random.nextInt(3) == 0 ? STREAMS : 1];
+        for (int stream = 0; stream < schedules.length; stream++) {
+            if (stream == 0 || random.nextInt(4) != 0) {
+                int interval = random.nextInt(8) == 0 ? 1 + random.nextInt(240) : 15 * (1 + random.nextInt(8));
+                schedules[stream] = BreakSchedule.compile(workWeek, interval, exceptionDays);
+            }
+        }
+        return schedules;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+  * Copyright (C) 2012 WIMM Labs Incorporated
+ */
+package com.wimm.breaktime.schedule;
+
+import java.util.TimeZone;
+
+/*
+ * Measures the wake-up hot path of the scheduling core on a plain JVM:
+ * compiling a BreakSchedule, finding the next break and computing a day's
+ * BreakPlan through LocalClock, over realistic and adversarial preference values.
+ *
+ * Build and run from the project root:
+ *   javac -d bin/bench src/com/wimm/breaktime/schedule/*.java server/com/wimm/breaktime/schedule/*.java bench/com/wimm/breaktime/schedule/*.java
+ *   java -cp bin/bench com.wimm.breaktime.schedule.ScheduleBenchmark
+ */
+public class ScheduleBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+
+    // start, end, break interval; each runs for every work days code.
+    private static final int[][] CONFIGS = {
+        { 540, 1020, 60 },   // default day shift
+        { 1320, 360, 90 },   // night shift across midnight
+        { 480, 1200, 1 },    // 1 minute interval
+        { 0, 0, 1 },         // around the clock, 1 minute interval
+        { 600, 600, 7 },     // 24 hour shift, odd interval
+    };
+
+    // Fixed zone so runs are comparable across build machines.
+    private static final LocalClock CLOCK = LocalClock.forZone(TimeZone.getTimeZone("UTC"), 0);
+
+    // Keeps the JIT from dropping the measured work.
+    private static long sSink;
+
+    public static void main(String[] args) {
+        System.out.println("config                      compile ns   next ns    plan ns");
+        for (int[] config : CONFIGS) {
+            for (int workDaysCode = 1; workDaysCode <= 3; workDaysCode++) {
+                run(config[0], config[1], workDaysCode, config[2]);
+            }
+        }
+        System.out.println("sink " + sSink);
+    }
+
+    private static void run(int start, int end, int workDaysCode, int interval) {
+        BreakSchedule schedule = BreakSchedule.compile(start, end, workDaysCode, interval);
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            measureCompile(start, end, workDaysCode, interval);
+            measureNext(schedule);
+            measurePlan(schedule);
+        }
+
+        long compile = Long.MAX_VALUE;
+        long next = Long.MAX_VALUE;
+        long plan = Long.MAX_VALUE;
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            compile = Math.min(compile, measureCompile(start, end, workDaysCode, interval));
+            next = Math.min(next, measureNext(schedule));
+            plan = Math.min(plan, measurePlan(schedule));
+        }
+        System.out.println(String.format("%4d-%4d code %d every %3d %10d %9d %10d",
+                start, end, workDaysCode, interval, compile, next, plan));
+    }
+
+    // Best case ns per schedule compilation.
+    private static long measureCompile(int start, int end, int workDaysCode, int interval) {
+        int ops = 200;
+        long begin = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            sSink += BreakSchedule.compile(start, end, workDaysCode, interval).fingerprint();
+        }
+        return (System.nanoTime() - begin) / ops;
+    }
+
+    // ns per next break lookup, over every minute of the week.
+    private static long measureNext(BreakSchedule schedule) {
+        long begin = System.nanoTime();
+        for (int mow = 0; mow < BreakSchedule.MINS_PER_WEEK; mow++) {
+            sSink += schedule.minsToNextBreak(mow);
+        }
+        return (System.nanoTime() - begin) / BreakSchedule.MINS_PER_WEEK;
+    }
+
+    // ns per day plan, starting at every hour of the week.
+    private static long measurePlan(BreakSchedule schedule) {
+        int ops = 0;
+        long begin = System.nanoTime();
+        for (int now = 0; now < BreakSchedule.MINS_PER_WEEK; now += 60) {
+            BreakPlan plan = BreakPlan.compute(schedule, CLOCK, now, BreakPlan.DEFAULT_HORIZON_MINS, BreakPlan.DEFAULT_MAX_SIZE);
+            sSink += plan.nextFireAfter(0);
+            ops++;
+        }
+        return (System.nanoTime() - begin) / ops;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+  * Copyright (C) 2012 WIMM Labs Incorporated
+ */
+package com.wimm.breaktime.schedule;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Next break computation for many users at once, for a backend mirroring the
+ * sync preferences. Settings are held in columns, one primitive array per
+ * preference indexed by user, and the next break is found in closed form
+ * from the shift of the current and the following days, so a batch
+ * allocates nothing per user.
+ *
+ * The rules are those of BreakSchedule for the legacy preference values: a
+ * shift from start to end on each day of the work days code, running past
+ * midnight when end is not after start, with a break every interval minutes
+ * into the shift, its end included. The time zone is a fixed offset in
+ * minutes; callers pass each user's offset in effect at now, so a next break
+ * past a daylight saving transition is off by the shift. Work windows,
+ * exception days and reminder streams are not covered: BreakRoster, which
+ * BreakDispatcher re-arms from, runs the full rules in real time zones.
+ *
+ * Like the other backend classes under server/, it builds for a JVM with the
+ * shared schedule sources and is not part of the app.
+ */
+public final class BreakBatch {
+    // Written for users without an upcoming break.
+    public static final long NO_FIRE = BreakPlan.NO_FIRE;
+
+    // Users a fork/join task computes itself rather than splitting further.
+    private static final int CHUNK_SIZE = 4096;
+
+    // Columns, owned by the caller and not copied.
+    private final int[] mStartWorkTimes;
+    private final int[] mEndWorkTimes;
+    private final int[] mWorkDaysCodes;
+    private final int[] mBreakIntervals;
+    private final boolean[] mEnabled;
+    private final int[] mZoneOffsets;
+    private final int mSize;
+
+    public BreakBatch(int[] startWorkTimes, int[] endWorkTimes, int[] workDaysCodes, int[] breakIntervals,
+            boolean[] enabled, int[] zoneOffsets) {
+        mSize = startWorkTimes.length;
+        if (endWorkTimes.length != mSize || workDaysCodes.length != mSize || breakIntervals.length != mSize
+                || enabled.length != mSize || zoneOffsets.length != mSize) {
+            throw new IllegalArgumentException("columns differ in length");
+        }
+        mStartWorkTimes = startWorkTimes;
+        mEndWorkTimes = endWorkTimes;
+        mWorkDaysCodes = workDaysCodes;
+        mBreakIntervals = breakIntervals;
+        mEnabled = enabled;
+        mZoneOffsets = zoneOffsets;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    // Write the next fire time (ms since the epoch) strictly after the epoch
+    // minute now of each user in [from, to) to fireTimes, or NO_FIRE.
+    public void computeNextFireTimes(long nowEpochMinute, long[] fireTimes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            long fireMinute = nextFireMinute(i, nowEpochMinute);
+            fireTimes[i] = fireMinute == NO_FIRE ? NO_FIRE : fireMinute * LocalClock.MS_PER_MIN;
+        }
+    }
+
+    // Same for all users, split in halves on the pool down to CHUNK_SIZE
+    // users, idle threads stealing the halves of uneven shift lengths.
+    // Blocks until every user is done.
+    public void computeNextFireTimes(long nowEpochMinute, long[] fireTimes, ForkJoinPool pool) {
+        pool.invoke(new ChunkTask(nowEpochMinute, fireTimes, 0, mSize));
+    }
+
+    private final class ChunkTask extends RecursiveAction {
+        private final long mNowEpochMinute;
+        private final long[] mFireTimes;
+        private final int mFrom;
+        private final int mTo;
+
+        ChunkTask(long nowEpochMinute, long[] fireTimes, int from, int to) {
+            mNowEpochMinute = nowEpochMinute;
+            mFireTimes = fireTimes;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= CHUNK_SIZE) {
+                computeNextFireTimes(mNowEpochMinute, mFireTimes, mFrom, mTo);
+                return;
+            }
+            int middle = (mFrom + mTo) >>> 1;
+            invokeAll(new ChunkTask(mNowEpochMinute, mFireTimes, mFrom, middle),
+                    new ChunkTask(mNowEpochMinute, mFireTimes, middle, mTo));
+        }
+    }
+
+    // Epoch minute of the given user's first break strictly after the epoch
+    // minute now, or NO_FIRE.
+    public long nextFireMinute(int user, long nowEpochMinute) {
+        if (!mEnabled[user]) {
+            return NO_FIRE;
+        }
+        return nextFireMinute(mStartWorkTimes[user], mEndWorkTimes[user], mWorkDaysCodes[user], mBreakIntervals[user],
+                mZoneOffsets[user], nowEpochMinute);
+    }
+
+    // Epoch minute of the first break strictly after the epoch minute now,
+    // or NO_FIRE if the settings hold no break.
+    public static long nextFireMinute(int startWorkTime, int endWorkTime, int workDaysCode, int breakInterval,
+            int zoneOffset, long nowEpochMinute) {
+        int length = WorkWeek.shiftLength(startWorkTime, endWorkTime);
+        if (breakInterval <= 0 || breakInterval > length) {
+            return NO_FIRE;
+        }
+
+        long local = nowEpochMinute + zoneOffset;
+        long today = floorDiv(local, BreakSchedule.MINS_PER_DAY);
+        long next = Long.MAX_VALUE;
+        // Yesterday's shift may still run; from tomorrow on the first shift
+        // of a work day holds the next break. Every code has work days at
+        // most two days apart.
+        for (long day = today - 1; day <= today + 3; day++) {
+            // 1970-01-01 was a Thursday.
+            if (!WorkWeek.isWorkDay(workDaysCode, (int) ((day + 4) % 7 + 7) % 7)) {
+                continue;
+            }
+            long shiftStart = day * BreakSchedule.MINS_PER_DAY + startWorkTime;
+            long breakMinute;
+            if (local < shiftStart + breakInterval) {
+                breakMinute = shiftStart + breakInterval;
+            }
+            else {
+                breakMinute = shiftStart + ((local - shiftStart) / breakInterval + 1) * breakInterval;
+                if (breakMinute > shiftStart + length) {
+                    // This shift is over.
+                    continue;
+                }
+            }
+            next = Math.min(next, breakMinute);
+            if (day > today) {
+                break;
+            }
+        }
+        return next == Long.MAX_VALUE ? NO_FIRE : next - zoneOffset;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        if ((x % y != 0) && ((x < 0) != (y < 0))) {
+            q--;
+        }
+        return q;
+    }
+}
@@ -0,0 +1,345 @@
+/*
+  * Copyright (C) 2012 WIMM Labs Incorporated
+ */
+package com.wimm.breaktime.schedule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Fires the breaks of every user of a BreakRoster, the server side stand-in
+ * for the break alarm. Pending breaks sit in a hierarchical timing wheel with
+ * a one minute tick: 64 slots per level, a level covering 64 times the span
+ * of the one below. A break far out waits in a coarse slot and cascades down
+ * as its time nears, so inserting and cancelling are O(1) and a tick only
+ * touches the breaks due in it.
+ *
+ * Every user has at most one pending break, kept in an intrusive doubly
+ * linked list through primitive arrays indexed by user, so memory is fixed
+ * at about 20 bytes per user. When a break fires, the user is re-armed for
+ * the next break of its BreakRoster settings in its own time zone, the
+ * rules the device uses, and the sink gets the streams due with it.
+ *
+ * The clock is driven by the caller through advance(), on the wall clock in
+ * a server or on a virtual clock when testing against an in-memory Sink.
+ * All methods are synchronized. A tick computes the next breaks of its fired
+ * users in chunks on the worker pool into a scratch array, then links them
+ * into the wheel on the thread holding the lock. The sink is called from the
+ * worker pool, or from a separate sink executor such as
+ * newVirtualSinkExecutor() for a sink blocking on I/O, while advance() waits,
+ * so it must not call back into the dispatcher.
+ */
+public final class BreakDispatcher {
+    // Receives the fired breaks, on the worker pool when there is one.
+    public interface Sink {
+        void deliver(int user, long fireEpochMinute, int streams);
+    }
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    // The top level spans about 182 days, far beyond the next break of any user.
+    private static final int LEVELS = 3;
+    private static final long MAX_DELAY = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private static final int NONE = -1;
+
+    // Users per task on the worker pool.
+    private static final int MIN_CHUNK_SIZE = 1024;
+    // Users per task on the sink executor, each may block on I/O.
+    private static final int SINK_CHUNK_SIZE = 64;
+
+    private final BreakRoster mRoster;
+    private final Sink mSink;
+    private final ExecutorService mExecutor;
+    private final ExecutorService mSinkExecutor;
+    private final int mParallelism;
+
+    // Per user: list links, slot index (NONE if not pending) and fire minute.
+    private final int[] mNext;
+    private final int[] mPrev;
+    private final short[] mSlot;
+    private final long[] mFireMinute;
+
+    // First user of each slot, level by level.
+    private final int[] mHeads = new int[LEVELS * SLOTS];
+
+    // Last minute processed.
+    private long mTick;
+    private int mPending;
+
+    // Breaks fired in the current tick and the next break of their users,
+    // reused across ticks.
+    private int[] mFiredUsers = new int[MIN_CHUNK_SIZE];
+    private long[] mFiredMinutes = new long[MIN_CHUNK_SIZE];
+    private int[] mFiredStreams = new int[MIN_CHUNK_SIZE];
+    private long[] mNextMinutes = new long[MIN_CHUNK_SIZE];
+
+    // A range of the fired breaks, run as one task.
+    private interface Chunk {
+        void run(int from, int to);
+    }
+
+    private final Chunk mRearmChunk = new Chunk() {
+        public void run(int from, int to) {
+            rearm(from, to);
+        }
+    };
+
+    private final Chunk mDeliverChunk = new Chunk() {
+        public void run(int from, int to) {
+            deliver(from, to);
+        }
+    };
+
+    // executor may be null to work on the thread calling advance().
+    public BreakDispatcher(BreakRoster roster, Sink sink, ExecutorService executor, int parallelism, long nowEpochMinute) {
+        this(roster, sink, executor, null, parallelism, nowEpochMinute);
+    }
+
+    // Deliver on sinkExecutor instead of the worker pool, null for the pool.
+    public BreakDispatcher(BreakRoster roster, Sink sink, ExecutorService executor, ExecutorService sinkExecutor,
+            int parallelism, long nowEpochMinute) {
+        int size = roster.size();
+        mRoster = roster;
+        mSink = sink;
+        mExecutor = executor;
+        mSinkExecutor = sinkExecutor;
+        mParallelism = Math.max(1, parallelism);
+        mNext = new int[size];
+        mPrev = new int[size];
+        mSlot = new short[size];
+        mFireMinute = new long[size];
+        for (int i = 0; i < size; i++) {
+            mSlot[i] = NONE;
+        }
+        for (int i = 0; i < mHeads.length; i++) {
+            mHeads[i] = NONE;
+        }
+        mTick = nowEpochMinute;
+    }
+
+    // An executor running each task on a virtual thread of its own where the
+    // JVM has them (Java 21 and later), so a sink blocking on I/O parks
+    // cheaply instead of holding a pool thread. Before, a cached thread pool.
+    public static ExecutorService newVirtualSinkExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (Exception e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    // Arm every user for its next break.
+    public synchronized void scheduleAll() {
+        for (int user = 0; user < mRoster.size(); user++) {
+            schedule(user);
+        }
+    }
+
+    // Arm the user for its next break after the current tick, replacing a
+    // pending one, e.g. after its settings or zone columns changed.
+    public synchronized void schedule(int user) {
+        cancel(user);
+        long fireMinute = mRoster.nextFireMinute(user, mTick);
+        if (fireMinute != BreakRoster.NO_FIRE) {
+            insert(user, fireMinute);
+        }
+    }
+
+    public synchronized void cancel(int user) {
+        int slot = mSlot[user];
+        if (slot == NONE) {
+            return;
+        }
+        int next = mNext[user];
+        int prev = mPrev[user];
+        if (prev == NONE) {
+            mHeads[slot] = next;
+        }
+        else {
+            mNext[prev] = next;
+        }
+        if (next != NONE) {
+            mPrev[next] = prev;
+        }
+        mSlot[user] = NONE;
+        mPending--;
+    }
+
+    public synchronized boolean isPending(int user) {
+        return mSlot[user] != NONE;
+    }
+
+    // Fire minute of the user's pending break, or NO_FIRE.
+    public synchronized long getFireMinute(int user) {
+        return mSlot[user] == NONE ? BreakRoster.NO_FIRE : mFireMinute[user];
+    }
+
+    public synchronized int getPendingCount() {
+        return mPending;
+    }
+
+    // Fire every break due up to the epoch minute now, tick by tick, and
+    // re-arm the users. Return the number of breaks fired.
+    public synchronized int advance(long nowEpochMinute) throws InterruptedException {
+        int fired = 0;
+        while (mTick < nowEpochMinute) {
+            mTick++;
+            cascade();
+            int count = expire(mTick);
+            if (mSinkExecutor != null) {
+                runChunks(mSinkExecutor, count, SINK_CHUNK_SIZE, mDeliverChunk);
+            }
+            else {
+                runChunks(mExecutor, count, poolChunkSize(count), mDeliverChunk);
+            }
+            fired += count;
+        }
+        return fired;
+    }
+
+    // Move the breaks of the higher level slots starting at this tick down.
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            if ((mTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                return;
+            }
+            int slot = level * SLOTS + (int) ((mTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+            int user = mHeads[slot];
+            mHeads[slot] = NONE;
+            while (user != NONE) {
+                int next = mNext[user];
+                mSlot[user] = NONE;
+                mPending--;
+                insert(user, mFireMinute[user]);
+                user = next;
+            }
+        }
+    }
+
+    // Unlink the breaks due at the tick into the fired buffer with their
+    // streams and re-arm their users.
+    private int expire(long tick) throws InterruptedException {
+        int slot = (int) (tick & SLOT_MASK);
+        int count = 0;
+        int user = mHeads[slot];
+        mHeads[slot] = NONE;
+        while (user != NONE) {
+            int next = mNext[user];
+            mSlot[user] = NONE;
+            mPending--;
+            if (count == mFiredUsers.length) {
+                growFired();
+            }
+            mFiredUsers[count] = user;
+            mFiredMinutes[count] = mFireMinute[user];
+            count++;
+            user = next;
+        }
+
+        // Only the roster is read in parallel, the wheel is linked here.
+        runChunks(mExecutor, count, poolChunkSize(count), mRearmChunk);
+        for (int i = 0; i < count; i++) {
+            if (mNextMinutes[i] != BreakRoster.NO_FIRE) {
+                insert(mFiredUsers[i], mNextMinutes[i]);
+            }
+        }
+        return count;
+    }
+
+    // Streams and next fire minute of the fired users in [from, to).
+    private void rearm(int from, int to) {
+        for (int i = from; i < to; i++) {
+            mFiredStreams[i] = mRoster.streamsAt(mFiredUsers[i], mFiredMinutes[i]);
+            mNextMinutes[i] = mRoster.nextFireMinute(mFiredUsers[i], mTick);
+        }
+    }
+
+    private void deliver(int from, int to) {
+        for (int i = from; i < to; i++) {
+            mSink.deliver(mFiredUsers[i], mFiredMinutes[i], mFiredStreams[i]);
+        }
+    }
+
+    // A few chunks per thread even out uneven work.
+    private int poolChunkSize(int count) {
+        return Math.max(MIN_CHUNK_SIZE, count / (mParallelism * 4) + 1);
+    }
+
+    // Run the chunk over the first count fired breaks, split in tasks of
+    // chunkSize on the executor, or in place for a single task or without
+    // one. Blocks until every task is done.
+    private void runChunks(ExecutorService executor, int count, int chunkSize, final Chunk chunk)
+            throws InterruptedException {
+        if (count == 0) {
+            return;
+        }
+        if (executor == null || count <= chunkSize) {
+            chunk.run(0, count);
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int from = 0; from < count; from += chunkSize) {
+            final int chunkFrom = from;
+            final int chunkTo = Math.min(count, from + chunkSize);
+            futures.add(executor.submit(new Runnable() {
+                public void run() {
+                    chunk.run(chunkFrom, chunkTo);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            }
+            catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    // Link the user into the slot for its fire minute. Cascading moves breaks
+    // due at the current tick into its slot before it expires; fire minutes
+    // are never earlier.
+    private void insert(int user, long fireMinute) {
+        mFireMinute[user] = fireMinute;
+        long delay = Math.min(Math.max(fireMinute - mTick, 0), MAX_DELAY);
+        long slotMinute = mTick + delay;
+        int level = 0;
+        while (level < LEVELS - 1 && delay >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int slot = level * SLOTS + (int) ((slotMinute >>> (SLOT_BITS * level)) & SLOT_MASK);
+
+        int head = mHeads[slot];
+        mNext[user] = head;
+        mPrev[user] = NONE;
+        if (head != NONE) {
+            mPrev[head] = user;
+        }
+        mHeads[slot] = user;
+        mSlot[user] = (short) slot;
+        mPending++;
+    }
+
+    private void growFired() {
+        int length = mFiredUsers.length * 2;
+        int[] users = new int[length];
+        long[] minutes = new long[length];
+        int[] streams = new int[length];
+        System.arraycopy(mFiredUsers, 0, users, 0, mFiredUsers.length);
+        System.arraycopy(mFiredMinutes, 0, minutes, 0, mFiredMinutes.length);
+        System.arraycopy(mFiredStreams, 0, streams, 0, mFiredStreams.length);
+        mFiredUsers = users;
+        mFiredMinutes = minutes;
+        mFiredStreams = streams;
+        mNextMinutes = new long[length];
+    }
+}
@@ -0,0 +1,117 @@
+/*
+  * Copyright (C) 2012 WIMM Labs Incorporated
+ */
+package com.wimm.breaktime.schedule;
+
+import java.util.TimeZone;
+
+/*
+ * The users of a backend with their settings compiled to BreakSchedules, so
+ * their next break follows the rules the device runs through BreakPlan:
+ * work windows, exception days and every reminder stream, in each user's
+ * own time zone. Users mostly share settings and zones, so both are held
+ * once and each user points at them by index in its columns.
+ *
+ * Each zone keeps a LocalClock covering the times asked about, rebuilt when
+ * a query falls outside of it, so breaks keep their local time across
+ * daylight saving transitions. A clock is immutable and rebuilding it gives
+ * the same table, so threads racing on the cache only waste a rebuild.
+ */
+public final class BreakRoster {
+    // Returned for users without an upcoming break.
+    public static final long NO_FIRE = BreakPlan.NO_FIRE;
+
+    // Streams fit the bit set of a BreakPlan fire time.
+    public static final int MAX_STREAMS = 31;
+
+    // Shared settings: stream i of a set has bit i, null if turned off.
+    private final BreakSchedule[][] mScheduleSets;
+    private final TimeZone[] mZones;
+    private final LocalClock[] mClocks;
+
+    // Columns, owned by the caller and not copied.
+    private final int[] mScheduleSetIndexes;
+    private final int[] mZoneIndexes;
+    private final boolean[] mEnabled;
+    private final int mSize;
+
+    // Throws IllegalArgumentException if the columns differ in length, a set
+    // has too many streams or a user points past the sets or zones.
+    public BreakRoster(BreakSchedule[][] scheduleSets, TimeZone[] zones, int[] scheduleSetIndexes,
+            int[] zoneIndexes, boolean[] enabled) {
+        mSize = scheduleSetIndexes.length;
+        if (zoneIndexes.length != mSize || enabled.length != mSize) {
+            throw new IllegalArgumentException("columns differ in length");
+        }
+        for (BreakSchedule[] schedules : scheduleSets) {
+            if (schedules.length > MAX_STREAMS) {
+                throw new IllegalArgumentException("too many streams: " + schedules.length);
+            }
+        }
+        for (int i = 0; i < mSize; i++) {
+            if (scheduleSetIndexes[i] < 0 || scheduleSetIndexes[i] >= scheduleSets.length
+                    || zoneIndexes[i] < 0 || zoneIndexes[i] >= zones.length) {
+                throw new IllegalArgumentException("bad settings of user " + i);
+            }
+        }
+        mScheduleSets = scheduleSets;
+        mZones = zones;
+        mClocks = new LocalClock[zones.length];
+        mScheduleSetIndexes = scheduleSetIndexes;
+        mZoneIndexes = zoneIndexes;
+        mEnabled = enabled;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    // Epoch minute of the user's first break after now over all its streams,
+    // or NO_FIRE.
+    public long nextFireMinute(int user, long nowEpochMinute) {
+        if (!mEnabled[user]) {
+            return NO_FIRE;
+        }
+        BreakSchedule[] schedules = mScheduleSets[mScheduleSetIndexes[user]];
+        LocalClock clock = clock(mZoneIndexes[user], nowEpochMinute);
+        long next = NO_FIRE;
+        for (BreakSchedule schedule : schedules) {
+            if (schedule != null) {
+                long fireMinute = BreakPlan.nextFireMinute(schedule, clock, nowEpochMinute);
+                if (fireMinute != NO_FIRE && (next == NO_FIRE || fireMinute < next)) {
+                    next = fireMinute;
+                }
+            }
+        }
+        return next;
+    }
+
+    // Bit set of the user's streams due at the fire minute returned by
+    // nextFireMinute(), 0 if none is.
+    public int streamsAt(int user, long fireEpochMinute) {
+        if (!mEnabled[user]) {
+            return 0;
+        }
+        BreakSchedule[] schedules = mScheduleSets[mScheduleSetIndexes[user]];
+        LocalClock clock = clock(mZoneIndexes[user], fireEpochMinute);
+        int streams = 0;
+        for (int i = 0; i < schedules.length; i++) {
+            if (schedules[i] != null
+                    && BreakPlan.nextFireMinute(schedules[i], clock, fireEpochMinute - 1) == fireEpochMinute) {
+                streams |= 1 << i;
+            }
+        }
+        return streams;
+    }
+
+    // The cached clock of the zone, rebuilt around the epoch minute if it
+    // does not cover it.
+    private LocalClock clock(int zone, long epochMinute) {
+        LocalClock clock = mClocks[zone];
+        if (clock == null || !clock.covers(epochMinute)) {
+            clock = LocalClock.forZone(mZones[zone], epochMinute);
+            mClocks[zone] = clock;
+        }
+        return clock;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+  * Copyright (C) 2012 WIMM Labs Incorporated
+ */
+package com.wimm.breaktime;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.wimm.breaktime.schedule.BreakSchedule;
+import com.wimm.breaktime.schedule.LocalClock;
+
+/*
+ * Append-only log of fired breaks, kept in a fixed size memory mapped file
+ * used as a ring buffer. The header holds the fired/acknowledged counts of
+ * the current day and week, updated on every write, so the totals shown by
+ * BreakTimeActivity never need a scan of the log.
+ *
+ * Header: version, capacity, records appended, then current day, fired and
+ * acknowledged for the day, current week start day, fired and acknowledged
+ * for the week. Record: fire time (wall clock ms), flags, reserved.
+ *
+ * A break counts as unseen until acknowledged: the user opened the app or
+ * snoozed it. The watch cannot tell whether the break itself was taken, so
+ * the totals are of breaks seen. Only the breaks of the current work window
+ * count as unseen: the first break of a window is flagged and ends the count.
+ */
+public final class BreakHistory {
+    // For debugging purposes.
+    private static final String TAG = BreakHistory.class.getSimpleName();
+
+    private static final String FILE_NAME = "history";
+    private static final int VERSION = 1;
+    private static final int CAPACITY = 512;
+
+    private static final int HEADER_SIZE = 48;
+    private static final int RECORD_SIZE = 16;
+
+    // Header offsets.
+    private static final int H_VERSION = 0;
+    private static final int H_CAPACITY = 4;
+    private static final int H_APPENDED = 8; // long
+    private static final int H_DAY = 16;
+    private static final int H_DAY_FIRED = 20;
+    private static final int H_DAY_ACKNOWLEDGED = 24;
+    private static final int H_WEEK = 28;
+    private static final int H_WEEK_FIRED = 32;
+    private static final int H_WEEK_ACKNOWLEDGED = 36;
+
+    // Record offsets and flags.
+    private static final int R_TIME = 0; // long
+    private static final int R_FLAGS = 8;
+    public static final int FLAG_ACKNOWLEDGED = 1;
+    public static final int FLAG_SILENT = 2; // posted without alerting
+    public static final int FLAG_WINDOW_START = 4; // first break of a work window
+    public static final int FLAG_SNOOZED = 8;
+
+    // Log of the process, null until first opened.
+    private static BreakHistory sInstance;
+
+    private final MappedByteBuffer mBuffer;
+
+    private BreakHistory(MappedByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    // Return the log of the process, or null if the file can't be mapped.
+    public static synchronized BreakHistory get(Context context) {
+        if (sInstance == null) {
+            sInstance = open(new File(context.getFilesDir(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    private static BreakHistory open(File file) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + CAPACITY * RECORD_SIZE);
+            if (buffer.getInt(H_VERSION) != VERSION || buffer.getInt(H_CAPACITY) != CAPACITY) {
+                // New or incompatible file, start over.
+                for (int i = 0; i < HEADER_SIZE; i += 4) {
+                    buffer.putInt(i, 0);
+                }
+                buffer.putInt(H_CAPACITY, CAPACITY);
+                buffer.putInt(H_VERSION, VERSION);
+            }
+            return new BreakHistory(buffer);
+        }
+        catch (IOException e) {
+            Log.e(TAG, "open~ could not map history", e);
+            return null;
+        }
+        finally {
+            // The mapping stays valid after the file is closed.
+            if (raf != null) {
+                try {
+                    raf.close();
+                }
+                catch (IOException e) {
+                    // Ignored.
+                }
+            }
+        }
+    }
+
+    // Record a break posted at the given time, flags of FLAG_SILENT and
+    // FLAG_WINDOW_START.
+    public synchronized void append(long firedAt, int flags) {
+        rollOver(firedAt);
+
+        long appended = mBuffer.getLong(H_APPENDED);
+        int record = recordOffset(appended);
+        mBuffer.putLong(record + R_TIME, firedAt);
+        mBuffer.putInt(record + R_FLAGS, flags & (FLAG_SILENT | FLAG_WINDOW_START));
+        mBuffer.putLong(H_APPENDED, appended + 1);
+
+        increment(H_DAY_FIRED);
+        increment(H_WEEK_FIRED);
+    }
+
+    // Mark the unseen breaks, those getUnacknowledgedCount() counts, as seen
+    // by the user. Return how many there were.
+    public synchronized int acknowledgeUnseen(long now) {
+        long appended = mBuffer.getLong(H_APPENDED);
+        int count = getUnacknowledgedCount();
+        for (int i = 0; i < count; i++) {
+            mark(appended - 1 - i, now, FLAG_ACKNOWLEDGED);
+        }
+        return count;
+    }
+
+    // Mark the latest break as snoozed, which counts as seen.
+    public synchronized void snoozeLatest(long now) {
+        long appended = mBuffer.getLong(H_APPENDED);
+        if (appended > 0) {
+            mark(appended - 1, now, FLAG_ACKNOWLEDGED | FLAG_SNOOZED);
+        }
+    }
+
+    // Time the latest break was posted if that was within maxAgeMs of now
+    // and it was not snoozed yet, else 0.
+    public synchronized long getSnoozableTime(long now, long maxAgeMs) {
+        long appended = mBuffer.getLong(H_APPENDED);
+        if (appended == 0) {
+            return 0;
+        }
+        int record = recordOffset(appended - 1);
+        long firedAt = mBuffer.getLong(record + R_TIME);
+        if ((mBuffer.getInt(record + R_FLAGS) & FLAG_SNOOZED) != 0 || now - firedAt > maxAgeMs || firedAt > now) {
+            return 0;
+        }
+        return firedAt;
+    }
+
+    // Add the flags to the break at the index, counting it as acknowledged
+    // the first time.
+    private void mark(long index, long now, int flags) {
+        int record = recordOffset(index);
+        int oldFlags = mBuffer.getInt(record + R_FLAGS);
+        mBuffer.putInt(record + R_FLAGS, oldFlags | flags);
+        if ((oldFlags & FLAG_ACKNOWLEDGED) != 0) {
+            return;
+        }
+
+        // Only count it if the break belongs to the current day/week.
+        rollOver(now);
+        long firedDay = localDay(mBuffer.getLong(record + R_TIME));
+        if (firedDay == mBuffer.getInt(H_DAY)) {
+            increment(H_DAY_ACKNOWLEDGED);
+        }
+        if (weekStart(firedDay) == mBuffer.getInt(H_WEEK)) {
+            increment(H_WEEK_ACKNOWLEDGED);
+        }
+    }
+
+    // Breaks of the current work window posted since the user last
+    // acknowledged one, the latest included.
+    public synchronized int getUnacknowledgedCount() {
+        long appended = mBuffer.getLong(H_APPENDED);
+        int count = 0;
+        while (count < appended && count < CAPACITY) {
+            int flags = mBuffer.getInt(recordOffset(appended - 1 - count) + R_FLAGS);
+            if ((flags & FLAG_ACKNOWLEDGED) != 0) {
+                break;
+            }
+            count++;
+            if ((flags & FLAG_WINDOW_START) != 0) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    // Unseen breaks posted silently since the last one that alerted.
+    public synchronized int getSilentCount() {
+        long appended = mBuffer.getLong(H_APPENDED);
+        int count = 0;
+        while (count < appended && count < CAPACITY) {
+            int flags = mBuffer.getInt(recordOffset(appended - 1 - count) + R_FLAGS);
+            if ((flags & (FLAG_ACKNOWLEDGED | FLAG_SILENT)) != FLAG_SILENT) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    // Time of the latest break posted with an alert, 0 if none is logged.
+    public synchronized long getLastAlertTime() {
+        long appended = mBuffer.getLong(H_APPENDED);
+        for (int i = 0; i < appended && i < CAPACITY; i++) {
+            int record = recordOffset(appended - 1 - i);
+            if ((mBuffer.getInt(record + R_FLAGS) & FLAG_SILENT) == 0) {
+                return mBuffer.getLong(record + R_TIME);
+            }
+        }
+        return 0;
+    }
+
+    // Breaks fired today, as of now.
+    public synchronized int getDayFired(long now) {
+        return localDay(now) == mBuffer.getInt(H_DAY) ? mBuffer.getInt(H_DAY_FIRED) : 0;
+    }
+
+    public synchronized int getDayAcknowledged(long now) {
+        return localDay(now) == mBuffer.getInt(H_DAY) ? mBuffer.getInt(H_DAY_ACKNOWLEDGED) : 0;
+    }
+
+    public synchronized int getWeekFired(long now) {
+        return weekStart(localDay(now)) == mBuffer.getInt(H_WEEK) ? mBuffer.getInt(H_WEEK_FIRED) : 0;
+    }
+
+    public synchronized int getWeekAcknowledged(long now) {
+        return weekStart(localDay(now)) == mBuffer.getInt(H_WEEK) ? mBuffer.getInt(H_WEEK_ACKNOWLEDGED) : 0;
+    }
+
+    // Compliance of the week in percent, acknowledged out of fired.
+    public synchronized int getWeekCompliance(long now) {
+        int fired = getWeekFired(now);
+        return fired == 0 ? 0 : getWeekAcknowledged(now) * 100 / fired;
+    }
+
+    // Reset the day and week aggregates when time moved past them.
+    private void rollOver(long now) {
+        int day = (int) localDay(now);
+        if (mBuffer.getInt(H_DAY) != day) {
+            mBuffer.putInt(H_DAY, day);
+            mBuffer.putInt(H_DAY_FIRED, 0);
+            mBuffer.putInt(H_DAY_ACKNOWLEDGED, 0);
+        }
+        int week = weekStart(day);
+        if (mBuffer.getInt(H_WEEK) != week) {
+            mBuffer.putInt(H_WEEK, week);
+            mBuffer.putInt(H_WEEK_FIRED, 0);
+            mBuffer.putInt(H_WEEK_ACKNOWLEDGED, 0);
+        }
+    }
+
+    private void increment(int offset) {
+        mBuffer.putInt(offset, mBuffer.getInt(offset) + 1);
+    }
+
+    private static int recordOffset(long index) {
+        return HEADER_SIZE + (int) (index % CAPACITY) * RECORD_SIZE;
+    }
+
+    // Local day (days since 1970-01-01) of the wall clock time.
+    private static long localDay(long time) {
+        long epochMinute = LocalClock.toEpochMinute(time);
+        return LocalClock.getDefault(epochMinute).localMinute(epochMinute) / BreakSchedule.MINS_PER_DAY;
+    }
+
+    // First day (Sunday) of the week holding the local day; 1970-01-01 was a Thursday.
+    private static int weekStart(long day) {
+        return (int) (day - (day + 4) % 7);
+    }
+}
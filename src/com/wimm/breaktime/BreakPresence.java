@@ -0,0 +1,45 @@
+/*
+  * Copyright (C) 2012 WIMM Labs Incorporated
+ */
+package com.wimm.breaktime;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+
+/*
+ * Decides from cheap system signals whether anyone is around to take a
+ * break. A watch on its charger is off the wrist. Nothing else tells a
+ * reliable story on API 7: a break alarm always wakes the device with the
+ * screen off, and reading a notification on the watch leaves no trace the
+ * app can see, so a user who reads each break and lowers the wrist looks
+ * the same as one who is gone. Without the charger, the user counts as
+ * present.
+ *
+ * A break found without anyone around is not posted, and BreakScheduler
+ * arms the following one without waking the device, so it waits for the
+ * next time the watch is awake anyway.
+ */
+public final class BreakPresence {
+    public static final int PRESENT = 0;
+    public static final int CHARGING = 1;
+
+    private BreakPresence() {
+    }
+
+    // Return PRESENT, or why the break about to be posted would be wasted.
+    public static int check(Context context) {
+        if (isCharging(context)) {
+            return CHARGING;
+        }
+        return PRESENT;
+    }
+
+    // Read the sticky battery broadcast, no receiver is registered.
+    public static boolean isCharging(Context context) {
+        Intent battery = context.getApplicationContext().registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+}
@@ -0,0 +1,303 @@
+/*
+  * Copyright (C) 2012 WIMM Labs Incorporated
+ */
+package com.wimm.breaktime;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+
+import com.wimm.breaktime.schedule.BreakAlarms;
+import com.wimm.breaktime.schedule.BreakPlan;
+import com.wimm.breaktime.schedule.LocalClock;
+
+/*
+ * Runs the BreakAlarms pipeline of the app: computes and stores the
+ * BreakPlan and arms the break alarm from it. BreakTimeReceiver uses it to
+ * reschedule in place and to arm the following break right after posting a
+ * notification, without starting the service or reading the sync
+ * preferences again. BreakSimulator runs the same pipeline on a virtual
+ * clock.
+ *
+ * The plan merges every reminder stream of BreakTimeSettings, so however
+ * many streams are on, a single wake-up alarm is pending. Its intent carries
+ * the streams due, and breaks of several streams falling on the same minute
+ * are posted as one notification.
+ *
+ * BreakTimeReceiver calls in on the main thread while BreakTimeService
+ * reschedules on its worker thread, so every method that reads or arms the
+ * stored state holds the class lock.
+ */
+public final class BreakScheduler {
+    // Local (not synced) preferences holding the stored plan.
+    private static final String PREFS_NAME = "break_plan";
+
+    private static BreakAlarms sAlarms;
+
+    private BreakScheduler() {
+    }
+
+    // Schedule the next notification according to preference settings. The
+    // stored plan is only recomputed when the preferences changed or it is
+    // used up, and the alarm is only re-armed when the next break moved.
+    public static synchronized void schedule(Context context, BreakTimeSettings settings) {
+        if (!settings.isEnableNotifications()) {
+            cancel(context);
+            return;
+        }
+        // Cancels the alarms if nothing is left to schedule, e.g. no work
+        // day selected.
+        getAlarms(context).schedule(settings.getSchedules(), settings.getDeliveryTolerance() * LocalClock.MS_PER_MIN);
+    }
+
+    // Reschedule right away when the settings snapshot is already in memory:
+    // a plan lookup, at most one AlarmManager call and a few local preference
+    // commits, fine for a single event such as a used up plan but not for
+    // bursts of preference changes, which go through BreakTimeService. In a
+    // cold process BreakTimeService does it instead, so the preference reads
+    // stay off the main thread.
+    public static void requestSchedule(Context context) {
+        if (BreakTimeSettings.isLoaded()) {
+            long start = System.nanoTime();
+            schedule(context, BreakTimeSettings.get(context));
+            BreakTimeMetrics.recordInlineSchedule(System.nanoTime() - start);
+        }
+        else {
+            context.startService(BreakTimeService.newScheduleIntent(BreakTimeService.ANY_CONFIG_VERSION));
+        }
+    }
+
+    // Return the stored plan, or null if none was saved.
+    public static synchronized BreakPlan loadPlan(Context context) {
+        return getAlarms(context).loadPlan();
+    }
+
+    public static synchronized void savePlan(Context context, BreakPlan plan) {
+        getAlarms(context).savePlan(plan);
+    }
+
+    // Record the break alarm just delivered and arm the following break. If
+    // nobody was there to take it, see BreakPresence, the following break
+    // does not wake the device either.
+    // Return false if the stored plan is used up and must be recomputed.
+    public static synchronized boolean onDelivered(Context context, long fireTime, int streams, long triggerTime,
+            boolean wakeup, long deliveredTime, boolean attended) {
+        return getAlarms(context).onDelivered(fireTime, streams, triggerTime, wakeup, deliveredTime, attended);
+    }
+
+    // Arm the alarm for the first planned break after both now and the given
+    // time. The alarm is left alone if it is already set for that break.
+    // Return false if the stored plan is used up and must be recomputed.
+    public static synchronized boolean armNext(Context context, long after) {
+        return getAlarms(context).armNext(after);
+    }
+
+    // Re-arm the alarm after a reboot from the checkpoint kept with the plan.
+    // Only local preferences are read. Return false if the checkpoint is
+    // missing or stale and a full schedule is needed.
+    public static synchronized boolean restore(Context context) {
+        // The settings of the stored plan, as last seen by the app.
+        int fingerprint = BreakPlan.fingerprint(BreakTimeSettings.getLastKnown(context).getSchedules());
+        return getAlarms(context).restore(fingerprint);
+    }
+
+    // Remind of the last break again after delayMs, unless the next planned
+    // break comes first. Return false if there is nothing to snooze:
+    // notifications are off, no break fired lately or the reminder would
+    // fall outside the work windows.
+    public static synchronized boolean snooze(Context context, BreakTimeSettings settings, long delayMs) {
+        if (!settings.isEnableNotifications()) {
+            return false;
+        }
+        return getAlarms(context).snooze(settings.getSchedules(), delayMs);
+    }
+
+    // Return true if the break planned at fireTime was already posted, e.g.
+    // when the other alarm of a tolerance window is delivered.
+    public static synchronized boolean isFired(Context context, long fireTime) {
+        return getAlarms(context).isFired(fireTime);
+    }
+
+    // Arm the alarm again for the next planned break, e.g. after the clock was
+    // set and the armed break may now lie in the past.
+    // Return false if the stored plan is used up and must be recomputed.
+    public static synchronized boolean rearm(Context context) {
+        return getAlarms(context).rearm();
+    }
+
+    // Drop the stored plan but keep the armed alarm until a new plan replaces
+    // it, e.g. when the local break times moved to another time zone.
+    public static synchronized void discardPlan(Context context) {
+        getAlarms(context).discardPlan();
+    }
+
+    // Cancel the armed alarms and drop the stored plan.
+    public static synchronized void cancel(Context context) {
+        getAlarms(context).cancel();
+    }
+
+    // The extras only travel with the alarm, they do not take part in
+    // matching an existing PendingIntent, so every stream shares the request code.
+    private static PendingIntent newIntentForAlarm(Context context, int requestCode, int flags, long fireTime,
+            long triggerTime, int streams, boolean wakeup) {
+        Intent i = new Intent(BreakTimeReceiver.ACTION_POST_NOTIFICATION);
+        i.setClass(context, BreakTimeReceiver.class);
+        i.addCategory(Intent.CATEGORY_ALTERNATIVE);
+
+        i.putExtra(BreakTimeReceiver.EXTRA_NOTIFICATION_MESSAGE, getMessage(context, streams));
+        i.putExtra(BreakTimeReceiver.EXTRA_STREAMS, streams);
+        i.putExtra(BreakTimeReceiver.EXTRA_FIRE_TIME, fireTime);
+        i.putExtra(BreakTimeReceiver.EXTRA_TRIGGER_TIME, triggerTime);
+        i.putExtra(BreakTimeReceiver.EXTRA_WAKEUP, wakeup);
+
+        return PendingIntent.getBroadcast(context.getApplicationContext(), requestCode, i, flags);
+    }
+
+    // The messages of the given streams, one per line.
+    private static String getMessage(Context context, int streams) {
+        StringBuilder sb = new StringBuilder();
+        for (int stream = 0; stream < BreakTimeSettings.STREAMS; stream++) {
+            if ((streams & (1 << stream)) != 0) {
+                if (sb.length() > 0) {
+                    sb.append('\n');
+                }
+                sb.append(context.getString(getMessageId(stream)));
+            }
+        }
+        if (sb.length() == 0) {
+            sb.append(context.getString(R.string.notification_break_msg));
+        }
+        return sb.toString();
+    }
+
+    private static int getMessageId(int stream) {
+        if (stream == BreakTimeSettings.STREAM_EYE_BREAK) {
+            return R.string.notification_eye_break_msg;
+        }
+        else if (stream == BreakTimeSettings.STREAM_STAND_UP) {
+            return R.string.notification_stand_up_msg;
+        }
+        return R.string.notification_break_msg;
+    }
+
+    // The pipeline on the local preferences and AlarmManager of the app.
+    private static BreakAlarms getAlarms(Context context) {
+        if (sAlarms == null) {
+            Context app = context.getApplicationContext();
+            sAlarms = new BreakAlarms(new PrefsStore(app.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)),
+                    new AlarmDevice(app));
+        }
+        return sAlarms;
+    }
+
+    // BreakAlarms.Store on SharedPreferences.
+    private static final class PrefsStore implements BreakAlarms.Store {
+        private final SharedPreferences mPrefs;
+
+        PrefsStore(SharedPreferences prefs) {
+            mPrefs = prefs;
+        }
+
+        public long getLong(String key, long defValue) {
+            return mPrefs.getLong(key, defValue);
+        }
+
+        public int getInt(String key, int defValue) {
+            return mPrefs.getInt(key, defValue);
+        }
+
+        public boolean getBoolean(String key, boolean defValue) {
+            return mPrefs.getBoolean(key, defValue);
+        }
+
+        public String getString(String key, String defValue) {
+            return mPrefs.getString(key, defValue);
+        }
+
+        public boolean contains(String key) {
+            return mPrefs.contains(key);
+        }
+
+        public BreakAlarms.Editor edit() {
+            return new PrefsEditor(mPrefs.edit());
+        }
+    }
+
+    private static final class PrefsEditor implements BreakAlarms.Editor {
+        private final SharedPreferences.Editor mEditor;
+
+        PrefsEditor(SharedPreferences.Editor editor) {
+            mEditor = editor;
+        }
+
+        public BreakAlarms.Editor putLong(String key, long value) {
+            mEditor.putLong(key, value);
+            return this;
+        }
+
+        public BreakAlarms.Editor putInt(String key, int value) {
+            mEditor.putInt(key, value);
+            return this;
+        }
+
+        public BreakAlarms.Editor putBoolean(String key, boolean value) {
+            mEditor.putBoolean(key, value);
+            return this;
+        }
+
+        public BreakAlarms.Editor putString(String key, String value) {
+            mEditor.putString(key, value);
+            return this;
+        }
+
+        public BreakAlarms.Editor remove(String key) {
+            mEditor.remove(key);
+            return this;
+        }
+
+        public void commit() {
+            mEditor.commit();
+        }
+    }
+
+    // BreakAlarms.Device on AlarmManager, alarm ids are the request codes of
+    // the PendingIntents posting the break.
+    private static final class AlarmDevice implements BreakAlarms.Device {
+        private final Context mContext;
+        private final AlarmManager mAlarmManager;
+
+        AlarmDevice(Context context) {
+            mContext = context;
+            mAlarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        }
+
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        public LocalClock clock(long epochMinute) {
+            return LocalClock.getDefault(epochMinute);
+        }
+
+        public void setAlarm(int id, long time, boolean wakeup, long fireTime, long triggerTime, int streams) {
+            mAlarmManager.set(wakeup ? AlarmManager.RTC_WAKEUP : AlarmManager.RTC, time, newIntentForAlarm(mContext,
+                    id, PendingIntent.FLAG_UPDATE_CURRENT, fireTime, triggerTime, streams, wakeup));
+            BreakTimeMetrics.recordAlarmSet();
+        }
+
+        public void cancelAlarm(int id) {
+            PendingIntent pi = newIntentForAlarm(mContext, id, PendingIntent.FLAG_NO_CREATE, 0, 0, 0, false);
+            if (pi != null) {
+                mAlarmManager.cancel(pi);
+                pi.cancel();
+                BreakTimeMetrics.recordAlarmCancel();
+            }
+        }
+
+        public boolean isAlarmSet(int id) {
+            return newIntentForAlarm(mContext, id, PendingIntent.FLAG_NO_CREATE, 0, 0, 0, false) != null;
+        }
+    }
+}
@@ -3,23 +3,23 @@
  */
 package com.wimm.breaktime;
 
-import static com.wimm.framework.service.SyncService.Intent.EXTRA_MODIFIED_PREFS;
-
-import java.util.ArrayList;
-
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.widget.Button;
 import android.widget.ScrollView;
 import android.widget.TextView;
 
+import com.wimm.breaktime.schedule.BreakAlarms;
+import com.wimm.breaktime.schedule.WorkWeek;
 import com.wimm.framework.app.LauncherActivity;
-import com.wimm.framework.provider.SyncPreference;
 import com.wimm.framework.widget.ToggleButton;
 
 /*
@@ -47,6 +47,11 @@ public class BreakTimeActivity extends LauncherActivity implements OnClickListen
     public static final int DEFAULT_END_WORK_TIME = 1020;
     public static final int DEFAULT_WORK_DAYS_CODE = 1; // 1(Mon - Fri), 2(Mon - Sat), 3(Mon - Sun)
     public static final int DEFAULT_BREAK_INTERVAL = 60;
+    public static final String DEFAULT_WORK_WINDOWS = ""; // use start/end work time and work days code
+    public static final String DEFAULT_WORK_EXCEPTIONS = "";
+    public static final int DEFAULT_DELIVERY_TOLERANCE = 0; // minutes either side, 0 for exact
+    public static final int DEFAULT_EYE_BREAK_INTERVAL = 0; // off, e.g. 20 for 20-20-20 eye breaks
+    public static final int DEFAULT_STAND_UP_INTERVAL = 0; // off, e.g. 60
 
     // Preferences Key strings.
     public static final String PREF_ENABLE_NOTIFICATIONS = "enable_notifications";
@@ -54,6 +59,11 @@ public class BreakTimeActivity extends LauncherActivity implements OnClickListen
     public static final String PREF_END_WORK_TIME = "end_work_time";
     public static final String PREF_WORK_DAYS_CODE = "work_days_code";
     public static final String PREF_BREAK_INTERVAL = "break_interval";
+    public static final String PREF_WORK_WINDOWS = "work_windows"; // e.g. "1:540-720,1:780-1020", see WorkWeek
+    public static final String PREF_WORK_EXCEPTIONS = "work_exceptions"; // e.g. "20121225,20130101"
+    public static final String PREF_DELIVERY_TOLERANCE = "delivery_tolerance";
+    public static final String PREF_EYE_BREAK_INTERVAL = "eye_break_interval";
+    public static final String PREF_STAND_UP_INTERVAL = "stand_up_interval";
 
     // Layout Views
     private ScrollView mScrollView;
@@ -61,13 +71,30 @@ public class BreakTimeActivity extends LauncherActivity implements OnClickListen
     private TextView mWorkHours;
     private TextView mWorkDays;
     private TextView mBreakInterval;
-
-    // Preferences local values.
-    private boolean mEnableNotifications;
-    private int mStartWorkTimeInMinsSinceMidnight;
-    private int mEndWorkTimeInMinsSinceMidnight;
-    private int mWorkDaysCode; // 1(Mon - Fri), 2(Mon - Sat), 3(Mon - Sun)
-    private int mBreakIntervalValueInMins;
+    private TextView mBreakHistory;
+    private Button mSnoozeButton;
+
+    // Preferences snapshot shown on screen, null until first bound.
+    private BreakTimeSettings mSettings;
+
+    // Toggle edits are written behind, once the toggle was left alone for
+    // this long, so flicking it costs one write and one reschedule.
+    private static final long WRITE_DELAY_MS = 1500;
+    private final Handler mHandler = new Handler();
+    private boolean mHasPendingWrite;
+    private boolean mPendingEnableNotifications;
+    // The write came due before the fresh settings were loaded.
+    private boolean mWriteDeferred;
+
+    // The latest break can be snoozed until then, 0 if it can't.
+    private long mSnoozableUntil;
+    // Notifications were scheduled after the first load.
+    private boolean mScheduled;
+
+    // Labels for each minute of the day and each break interval, built on
+    // first use and shared by all launches of the process.
+    private static final String[] sTimeLabels = new String[24 * 60];
+    private static final String[] sIntervalLabels = new String[24 * 60 + 1];
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -81,33 +108,168 @@ public class BreakTimeActivity extends LauncherActivity implements OnClickListen
         mWorkHours = (TextView) findViewById(R.id.work_hours);
         mWorkDays = (TextView) findViewById(R.id.work_days);
         mBreakInterval = (TextView) findViewById(R.id.break_interval);
+        mBreakHistory = (TextView) findViewById(R.id.break_history);
+        mSnoozeButton = (Button) findViewById(R.id.snooze_button);
+        mSnoozeButton.setOnClickListener(this);
 
         // Register for broadcast intents.
         IntentFilter filter = new IntentFilter();
         filter.addAction(ACTION_UPDATE_PREFS);
         this.registerReceiver(mReceiver, filter);
 
-        // Getting sync preference values
-        mEnableNotifications = SyncPreference.getBoolean(this,PREF_ENABLE_NOTIFICATIONS, DEFAULT_ENABLE_NOTIFICATIONS);
-        mStartWorkTimeInMinsSinceMidnight = SyncPreference.getInt(this, PREF_START_WORK_TIME, DEFAULT_START_WORK_TIME);
-        mEndWorkTimeInMinsSinceMidnight = SyncPreference.getInt(this, PREF_END_WORK_TIME, DEFAULT_END_WORK_TIME);
-        mWorkDaysCode = SyncPreference.getInt(this, PREF_WORK_DAYS_CODE, DEFAULT_WORK_DAYS_CODE);
-        mBreakIntervalValueInMins = SyncPreference.getInt(this, PREF_BREAK_INTERVAL, DEFAULT_BREAK_INTERVAL);
+        // Draw the first frame from the last known values, the sync
+        // preference values and the history are loaded on resume.
+        updateSettingsDisplay(BreakTimeSettings.getLastKnown(this));
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        new LoadSettingsTask().execute();
+    }
+
+    // Show the snooze button only while there is a break to snooze, see
+    // BreakTimeReceiver, and hide it again once the break got too old.
+    void updateSnoozeButton() {
+        mHandler.removeCallbacks(mUpdateSnoozeButton);
+        long remaining = mSnoozableUntil - System.currentTimeMillis();
+        boolean snoozable = remaining > 0 && mSettings != null && mSettings.isEnableNotifications();
+        mSnoozeButton.setVisibility(snoozable ? View.VISIBLE : View.GONE);
+        if (snoozable) {
+            mHandler.postDelayed(mUpdateSnoozeButton, remaining);
+        }
+    }
+
+    private final Runnable mUpdateSnoozeButton = new Runnable() {
+        @Override
+        public void run() {
+            updateSnoozeButton();
+        }
+    };
 
-        // Update UI
-        updateSettingsDisplay();
+    // Bind the views to the given snapshot, only touching views whose value
+    // differs from the snapshot currently shown.
+    void updateSettingsDisplay(BreakTimeSettings settings) {
+        BreakTimeSettings shown = mSettings;
+        mSettings = settings;
+
+        // The toggle keeps showing an edit not yet written.
+        if (!mHasPendingWrite && (shown == null || shown.isEnableNotifications() != settings.isEnableNotifications())) {
+            mNotificationsToggleButton.setChecked(settings.isEnableNotifications());
+        }
+        boolean windowsChanged = shown == null || !shown.getWorkWindows().equals(settings.getWorkWindows());
+        if (windowsChanged || shown.getStartWorkTime() != settings.getStartWorkTime()
+                || shown.getEndWorkTime() != settings.getEndWorkTime()) {
+            mWorkHours.setText(getWorkHoursString());
+        }
+        if (windowsChanged || shown.getWorkDaysCode() != settings.getWorkDaysCode()) {
+            mWorkDays.setText(getWorkDaysString());
+        }
+        if (shown == null || shown.getBreakInterval() != settings.getBreakInterval()) {
+            mBreakInterval.setText(this.getString(R.string.break_interval)+" "+getBreakIntervalString());
+        }
+        if (shown == null || shown.isEnableNotifications() != settings.isEnableNotifications()) {
+            updateSnoozeButton();
+        }
+    }
 
-        // Schedule notifications
-        scheduleNotification();
+    // What LoadSettingsTask read for the screen.
+    private static final class Loaded {
+        BreakTimeSettings mSettings;
+        // Breaks seen today and this week, null without a history.
+        String mHistory;
+        long mSnoozableUntil;
     }
 
-    void updateSettingsDisplay() {
-        mNotificationsToggleButton.setChecked(mEnableNotifications);
+    // Loads the settings snapshot, at most one bulk SyncPreference read, and
+    // the break history, then refreshes the screen and, after the first load,
+    // schedules notifications.
+    private class LoadSettingsTask extends AsyncTask<Void, Void, Loaded> {
+        @Override
+        protected Loaded doInBackground(Void... params) {
+            Context context = getApplicationContext();
+            Loaded loaded = new Loaded();
+            loaded.mSettings = BreakTimeSettings.get(context);
+
+            // Opening the app counts as having seen the unseen breaks.
+            BreakHistory history = BreakHistory.get(context);
+            if (history != null) {
+                long now = System.currentTimeMillis();
+                history.acknowledgeUnseen(now);
+                loaded.mHistory = context.getString(R.string.break_history, history.getDayAcknowledged(now),
+                        history.getDayFired(now), history.getWeekCompliance(now));
+                long snoozable = history.getSnoozableTime(now, BreakAlarms.SNOOZE_MAX_AGE_MS);
+                loaded.mSnoozableUntil = snoozable == 0 ? 0 : snoozable + BreakAlarms.SNOOZE_MAX_AGE_MS;
+            }
+            return loaded;
+        }
 
-        mWorkHours.setText(getWorkHoursString());
-        mWorkDays.setText(getWorkDaysString());
+        @Override
+        protected void onPostExecute(Loaded loaded) {
+            updateSettingsDisplay(loaded.mSettings);
+            if (loaded.mHistory != null) {
+                mBreakHistory.setText(loaded.mHistory);
+            }
+            mSnoozableUntil = loaded.mSnoozableUntil;
+            updateSnoozeButton();
+            if (mWriteDeferred) {
+                writePendingSettings();
+            }
 
-        mBreakInterval.setText(this.getString(R.string.break_interval)+" "+formatTimeInterval(mBreakIntervalValueInMins));
+            // Schedule notifications
+            if (!mScheduled) {
+                mScheduled = true;
+                scheduleNotification();
+            }
+        }
+    }
+
+    // Saves the notifications toggle and reschedules off the main thread.
+    private class WriteSettingsTask extends AsyncTask<Boolean, Void, BreakTimeSettings> {
+        @Override
+        protected BreakTimeSettings doInBackground(Boolean... params) {
+            Context context = getApplicationContext();
+            // Saving preference to SyncPreference which will be push to
+            // the cloud during the next sync.
+            BreakTimeSettings.setEnableNotifications(context, params[0]);
+            BreakTimeSettings settings = BreakTimeSettings.get(context);
+
+            // Schedule notifications
+            context.startService(BreakTimeService.newScheduleIntent(settings.getVersion()));
+            return settings;
+        }
+
+        @Override
+        protected void onPostExecute(BreakTimeSettings settings) {
+            updateSettingsDisplay(settings);
+        }
+    }
+
+    private final Runnable mWritePendingSettings = new Runnable() {
+        @Override
+        public void run() {
+            writePendingSettings();
+        }
+    };
+
+    // Write the last toggle edit, if it still differs from the settings. The
+    // last known snapshot may be stale after a web panel edit, so the edit is
+    // only compared once LoadSettingsTask brought the fresh one.
+    void writePendingSettings() {
+        mHandler.removeCallbacks(mWritePendingSettings);
+        if (!mHasPendingWrite) {
+            return;
+        }
+        // getLastKnown() gives version 0 while no snapshot was loaded.
+        if (mSettings == null || mSettings.getVersion() == 0) {
+            mWriteDeferred = true;
+            return;
+        }
+        mHasPendingWrite = false;
+        mWriteDeferred = false;
+        if (mPendingEnableNotifications != mSettings.isEnableNotifications()) {
+            new WriteSettingsTask().execute(mPendingEnableNotifications);
+        }
     }
 
     void scheduleNotification() {
@@ -116,15 +278,24 @@ public class BreakTimeActivity extends LauncherActivity implements OnClickListen
         this.startService(serviceIntent);
     }
 
+    // Neither label compiles the schedule, the windows are only counted.
     private String getWorkHoursString() {
+        if (mSettings.getCustomWorkWeek() != null) {
+            return getString(R.string.custom_work_windows);
+        }
         return getStartWorkTimeString()+" - "+getEndWorkTimeString()+",";
     }
 
     private String getWorkDaysString() {
-        if (mWorkDaysCode == 1){
+        WorkWeek workWeek = mSettings.getCustomWorkWeek();
+        if (workWeek != null) {
+            return getString(R.string.work_windows, workWeek.size());
+        }
+        int workDaysCode = mSettings.getWorkDaysCode();
+        if (workDaysCode == 1){
             return "Monday - Friday";
         }
-        else if (mWorkDaysCode == 2){
+        else if (workDaysCode == 2){
             return "Monday - Saturday";
         }
         else{
@@ -133,11 +304,32 @@ public class BreakTimeActivity extends LauncherActivity implements OnClickListen
     }
 
     private String getStartWorkTimeString() {
-        return formatTimeFromMinsPastMidnight(mStartWorkTimeInMinsSinceMidnight);
+        return getTimeLabel(mSettings.getStartWorkTime());
     }
 
     private String getEndWorkTimeString() {
-        return formatTimeFromMinsPastMidnight(mEndWorkTimeInMinsSinceMidnight);
+        return getTimeLabel(mSettings.getEndWorkTime());
+    }
+
+    private String getBreakIntervalString() {
+        int minutes = mSettings.getBreakInterval();
+        if (minutes < 0 || minutes >= sIntervalLabels.length) {
+            return formatTimeInterval(minutes);
+        }
+        if (sIntervalLabels[minutes] == null) {
+            sIntervalLabels[minutes] = formatTimeInterval(minutes);
+        }
+        return sIntervalLabels[minutes];
+    }
+
+    private String getTimeLabel(int minutesPastMidnight) {
+        if (minutesPastMidnight < 0 || minutesPastMidnight >= sTimeLabels.length) {
+            return formatTimeFromMinsPastMidnight(minutesPastMidnight);
+        }
+        if (sTimeLabels[minutesPastMidnight] == null) {
+            sTimeLabels[minutesPastMidnight] = formatTimeFromMinsPastMidnight(minutesPastMidnight);
+        }
+        return sTimeLabels[minutesPastMidnight];
     }
 
     private String formatTimeFromMinsPastMidnight(int minutesPastMidnight) {
@@ -181,20 +373,23 @@ public class BreakTimeActivity extends LauncherActivity implements OnClickListen
         }
     }
 
-    // Saving preference to SyncPreference which will be push to
-    // the cloud during the next sync.
-    private void setPreference(String preference, boolean value) {
-        SyncPreference.putBoolean(getApplicationContext(), preference, value);
-    }
-
     @Override
     public void onClick(View v) {
         if (mNotificationsToggleButton.equals(v)) {
-            setPreference(PREF_ENABLE_NOTIFICATIONS, mNotificationsToggleButton.isChecked());
-            mEnableNotifications = mNotificationsToggleButton.isChecked();
-
-            // Schedule notifications
-            scheduleNotification();
+            // The toggle shows the new state right away, the write waits
+            // for the user to stop flicking it.
+            mPendingEnableNotifications = mNotificationsToggleButton.isChecked();
+            mHasPendingWrite = true;
+            mHandler.removeCallbacks(mWritePendingSettings);
+            mHandler.postDelayed(mWritePendingSettings, WRITE_DELAY_MS);
+        }
+        else if (mSnoozeButton.equals(v)) {
+            // BreakTimeReceiver moves the alarm without a full reschedule.
+            Intent snoozeIntent = new Intent(BreakTimeReceiver.ACTION_SNOOZE);
+            snoozeIntent.setClass(this, BreakTimeReceiver.class);
+            this.sendBroadcast(snoozeIntent);
+            mSnoozableUntil = 0;
+            updateSnoozeButton();
         }
         else {
             Log.e(TAG, "Invalid onclick event");
@@ -208,28 +403,8 @@ public class BreakTimeActivity extends LauncherActivity implements OnClickListen
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
             if (action.equals(ACTION_UPDATE_PREFS)) {
-                ArrayList<String> modifiedPrefs = intent.getStringArrayListExtra(EXTRA_MODIFIED_PREFS);
-                for (String key : modifiedPrefs){
-                    if (key.equals(PREF_ENABLE_NOTIFICATIONS)) {
-                        mEnableNotifications = SyncPreference.getBoolean(context, PREF_ENABLE_NOTIFICATIONS, DEFAULT_ENABLE_NOTIFICATIONS);
-                    }
-                    else if (key.equals(PREF_START_WORK_TIME)) {
-                        mStartWorkTimeInMinsSinceMidnight = SyncPreference.getInt(context, PREF_START_WORK_TIME, DEFAULT_START_WORK_TIME);
-                    }
-                    else if (key.equals(PREF_END_WORK_TIME)) {
-                        mEndWorkTimeInMinsSinceMidnight = SyncPreference.getInt(context, PREF_END_WORK_TIME, DEFAULT_END_WORK_TIME);
-                    }
-                    else if (key.equals(PREF_WORK_DAYS_CODE)) {
-                        mWorkDaysCode = SyncPreference.getInt(context, PREF_WORK_DAYS_CODE, DEFAULT_WORK_DAYS_CODE);
-                    }
-                    else if (key.equals(PREF_BREAK_INTERVAL)) {
-                        mBreakIntervalValueInMins = SyncPreference.getInt(context, PREF_BREAK_INTERVAL, DEFAULT_BREAK_INTERVAL);
-                    }
-                    else {
-                        Log.e (TAG, "unknown prefs detected");
-                    }
-                }
-                updateSettingsDisplay();
+                // BreakTimeReceiver already refreshed the modified keys.
+                updateSettingsDisplay(BreakTimeSettings.get(context));
             }
             else {
 
@@ -245,6 +420,8 @@ public class BreakTimeActivity extends LauncherActivity implements OnClickListen
     @Override
     protected void onStop() {
         super.onStop();
+        mHandler.removeCallbacks(mUpdateSnoozeButton);
+        writePendingSettings();
         this.unregisterReceiver(mReceiver);
     }
 
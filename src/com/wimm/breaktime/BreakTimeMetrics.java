@@ -0,0 +1,308 @@
+/*
+  * Copyright (C) 2012 WIMM Labs Incorporated
+ */
+package com.wimm.breaktime;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.Context;
+import android.util.Log;
+
+/*
+ * Wake-up and scheduling counters. Components record into primitive
+ * in-memory counters; flush() folds them at the end of each wake-up into a
+ * fixed record memory-mapped from a small file. That is a few stores to
+ * memory rather than a file write, and the kernel keeps the dirty pages when
+ * the process is killed between breaks, only a power loss can drop the
+ * latest values. dump() formats the totals, BreakTimeReceiver logs them on
+ * the ACTION_DUMP_METRICS debug broadcast.
+ */
+public final class BreakTimeMetrics {
+    // For debugging purposes.
+    private static final String TAG = BreakTimeMetrics.class.getSimpleName();
+
+    // Private file holding the totals: version and counter count ints, then
+    // a long per counter, big-endian.
+    private static final String FILE_NAME = "metrics";
+    private static final int FILE_VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+
+    // Counter indexes.
+    public static final int WAKEUPS = 0;
+    public static final int FIRST_WAKEUP_TIME = 1;
+    public static final int LAST_WAKEUP_TIME = 2;
+    public static final int POSTS = 3;
+    public static final int POST_LATENCY_NS = 4;
+    public static final int POST_LATENCY_MAX_NS = 5;
+    public static final int HANDLE_INTENTS = 6;
+    public static final int HANDLE_INTENT_NS = 7;
+    public static final int HANDLE_INTENT_MAX_NS = 8;
+    public static final int PREF_READS = 9;
+    public static final int PREF_READ_NS = 10;
+    public static final int ALARM_SETS = 11;
+    public static final int ALARM_CANCELS = 12;
+    public static final int DRIFT_SAMPLES = 13;
+    public static final int DRIFT_ABS_MS = 14;
+    public static final int DRIFT_MAX_MS = 15;
+    public static final int INLINE_SCHEDULES = 16;
+    public static final int INLINE_SCHEDULE_NS = 17;
+    public static final int SERVICE_STARTS = 18;
+    public static final int SERVICE_START_MS = 19;
+    public static final int COALESCED = 20;
+    public static final int COALESCE_SHIFT_ABS_MS = 21;
+    public static final int COALESCE_SHIFT_MAX_MS = 22;
+    public static final int SILENT_POSTS = 23;
+    public static final int SNOOZES = 24;
+    public static final int SUPPRESSED_CHARGING = 25;
+    public static final int WAKEUPS_AVOIDED = 26;
+    public static final int STREAMS_MERGED = 27;
+    public static final int RECEIVES = 28;
+    public static final int RECEIVE_NS = 29;
+    public static final int RECEIVE_MAX_NS = 30;
+    private static final int COUNTERS = 31;
+
+    // How a counter is folded into the stored total.
+    private static final int SUM = 0;
+    private static final int MAX = 1;
+    private static final int FIRST = 2;
+    private static final int[] MERGE = {
+        SUM, FIRST, MAX,
+        SUM, SUM, MAX,
+        SUM, SUM, MAX,
+        SUM, SUM,
+        SUM, SUM,
+        SUM, SUM, MAX,
+        SUM, SUM,
+        SUM, SUM,
+        SUM, SUM, MAX,
+        SUM, SUM,
+        SUM, SUM,
+        SUM,
+        SUM, SUM, MAX,
+    };
+
+    // Values recorded since the last flush.
+    private static final long[] sPending = new long[COUNTERS];
+
+    // Totals mapped from the file, null until the first flush.
+    private static LongBuffer sTotals;
+
+    private BreakTimeMetrics() {
+    }
+
+    // An alarm was delivered at deliveredTime for a break planned at
+    // plannedTime (both wall clock, plannedTime 0 if unknown). Only wake-up
+    // alarms count as wake-ups and drift samples; non-wakeup alarms are
+    // delivered whenever something else woke the device.
+    public static synchronized void recordWakeup(long plannedTime, long deliveredTime, boolean wakeup) {
+        if (sPending[FIRST_WAKEUP_TIME] == 0) {
+            sPending[FIRST_WAKEUP_TIME] = deliveredTime;
+        }
+        sPending[LAST_WAKEUP_TIME] = deliveredTime;
+        if (!wakeup) {
+            return;
+        }
+        sPending[WAKEUPS]++;
+        if (plannedTime > 0) {
+            long drift = Math.abs(deliveredTime - plannedTime);
+            sPending[DRIFT_SAMPLES]++;
+            sPending[DRIFT_ABS_MS] += drift;
+            sPending[DRIFT_MAX_MS] = Math.max(sPending[DRIFT_MAX_MS], drift);
+        }
+    }
+
+    // A notification was posted latencyNs after its alarm was delivered,
+    // silently if it only updated the count of an unseen one.
+    public static synchronized void recordPosted(long latencyNs, boolean silent) {
+        sPending[POSTS]++;
+        if (silent) {
+            sPending[SILENT_POSTS]++;
+        }
+        sPending[POST_LATENCY_NS] += latencyNs;
+        sPending[POST_LATENCY_MAX_NS] = Math.max(sPending[POST_LATENCY_MAX_NS], latencyNs);
+    }
+
+    // BreakTimeReceiver.onReceive held the main thread this long.
+    public static synchronized void recordReceive(long durationNs) {
+        sPending[RECEIVES]++;
+        sPending[RECEIVE_NS] += durationNs;
+        sPending[RECEIVE_MAX_NS] = Math.max(sPending[RECEIVE_MAX_NS], durationNs);
+    }
+
+    public static synchronized void recordHandleIntent(long durationNs) {
+        sPending[HANDLE_INTENTS]++;
+        sPending[HANDLE_INTENT_NS] += durationNs;
+        sPending[HANDLE_INTENT_MAX_NS] = Math.max(sPending[HANDLE_INTENT_MAX_NS], durationNs);
+    }
+
+    public static synchronized void recordPrefReads(int reads, long durationNs) {
+        sPending[PREF_READS] += reads;
+        sPending[PREF_READ_NS] += durationNs;
+    }
+
+    // A reschedule ran in place instead of through BreakTimeService.
+    public static synchronized void recordInlineSchedule(long durationNs) {
+        sPending[INLINE_SCHEDULES]++;
+        sPending[INLINE_SCHEDULE_NS] += durationNs;
+    }
+
+    // BreakTimeService started handling a request startMs after it was sent.
+    public static synchronized void recordServiceStart(long startMs) {
+        sPending[SERVICE_STARTS]++;
+        sPending[SERVICE_START_MS] += startMs;
+    }
+
+    // A break was delivered by its non-wakeup alarm while the device was
+    // awake anyway, shiftMs from its planned time.
+    public static synchronized void recordCoalesced(long shiftMs) {
+        long shift = Math.abs(shiftMs);
+        sPending[COALESCED]++;
+        sPending[COALESCE_SHIFT_ABS_MS] += shift;
+        sPending[COALESCE_SHIFT_MAX_MS] = Math.max(sPending[COALESCE_SHIFT_MAX_MS], shift);
+    }
+
+    public static synchronized void recordSnooze() {
+        sPending[SNOOZES]++;
+    }
+
+    // A break was not posted because the watch was charging, see BreakPresence.
+    public static synchronized void recordSuppressed() {
+        sPending[SUPPRESSED_CHARGING]++;
+    }
+
+    // A non-wakeup alarm was delivered after the wake-up alarm it stands for
+    // was due, so the device was not woken for it, see BreakScheduler.
+    public static synchronized void recordWakeupAvoided() {
+        sPending[WAKEUPS_AVOIDED]++;
+    }
+
+    // Breaks of several reminder streams were posted as one.
+    public static synchronized void recordStreamsMerged() {
+        sPending[STREAMS_MERGED]++;
+    }
+
+    public static synchronized void recordAlarmSet() {
+        sPending[ALARM_SETS]++;
+    }
+
+    public static synchronized void recordAlarmCancel() {
+        sPending[ALARM_CANCELS]++;
+    }
+
+    // Fold the pending values into the stored totals. Only stores to the
+    // mapped record, the first flush of a process maps it.
+    public static synchronized void flush(Context context) {
+        LongBuffer totals = getTotals(context);
+        if (totals == null) {
+            return;
+        }
+        for (int i = 0; i < COUNTERS; i++) {
+            totals.put(i, merge(i, totals.get(i), sPending[i]));
+            sPending[i] = 0;
+        }
+    }
+
+    // Compact one line summary of the totals, including unflushed values.
+    public static synchronized String dump(Context context) {
+        LongBuffer totals = getTotals(context);
+        long[] t = new long[COUNTERS];
+        for (int i = 0; i < COUNTERS; i++) {
+            t[i] = merge(i, totals == null ? 0 : totals.get(i), sPending[i]);
+        }
+
+        long days = 1;
+        if (t[FIRST_WAKEUP_TIME] > 0) {
+            days = Math.max(1, (t[LAST_WAKEUP_TIME] - t[FIRST_WAKEUP_TIME]) / (24 * 60 * 60 * 1000L) + 1);
+        }
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("wakeups=").append(t[WAKEUPS])
+                .append(" perDay=").append(t[WAKEUPS] / days)
+                .append(" silentPosts=").append(t[SILENT_POSTS])
+                .append(" snoozes=").append(t[SNOOZES])
+                .append(" suppressedCharging=").append(t[SUPPRESSED_CHARGING])
+                .append(" wakeupsAvoided=").append(t[WAKEUPS_AVOIDED])
+                .append(" streamsMerged=").append(t[STREAMS_MERGED])
+                .append(" postAvgUs=").append(average(t[POST_LATENCY_NS], t[POSTS]) / 1000)
+                .append(" postMaxUs=").append(t[POST_LATENCY_MAX_NS] / 1000)
+                .append(" receiveAvgUs=").append(average(t[RECEIVE_NS], t[RECEIVES]) / 1000)
+                .append(" receiveMaxUs=").append(t[RECEIVE_MAX_NS] / 1000)
+                .append(" handleAvgUs=").append(average(t[HANDLE_INTENT_NS], t[HANDLE_INTENTS]) / 1000)
+                .append(" handleMaxUs=").append(t[HANDLE_INTENT_MAX_NS] / 1000)
+                .append(" inline=").append(t[INLINE_SCHEDULES])
+                .append(" inlineAvgUs=").append(average(t[INLINE_SCHEDULE_NS], t[INLINE_SCHEDULES]) / 1000)
+                .append(" serviceStarts=").append(t[SERVICE_STARTS])
+                .append(" serviceStartAvgMs=").append(average(t[SERVICE_START_MS], t[SERVICE_STARTS]))
+                .append(" prefReads=").append(t[PREF_READS])
+                .append(" prefReadAvgUs=").append(average(t[PREF_READ_NS], t[PREF_READS]) / 1000)
+                .append(" alarmSets=").append(t[ALARM_SETS])
+                .append(" alarmCancels=").append(t[ALARM_CANCELS])
+                .append(" driftAvgMs=").append(average(t[DRIFT_ABS_MS], t[DRIFT_SAMPLES]))
+                .append(" driftMaxMs=").append(t[DRIFT_MAX_MS])
+                .append(" coalesced=").append(t[COALESCED])
+                .append(" coalesceShiftAvgMs=").append(average(t[COALESCE_SHIFT_ABS_MS], t[COALESCED]))
+                .append(" coalesceShiftMaxMs=").append(t[COALESCE_SHIFT_MAX_MS]);
+        return sb.toString();
+    }
+
+    private static long average(long total, long count) {
+        return count == 0 ? 0 : total / count;
+    }
+
+    private static long merge(int counter, long total, long pending) {
+        if (MERGE[counter] == SUM) {
+            return total + pending;
+        }
+        else if (MERGE[counter] == MAX) {
+            return Math.max(total, pending);
+        }
+        return total == 0 ? pending : total; // FIRST
+    }
+
+    // Map the record, extended with zeroed counters when an older build
+    // wrote fewer. Return null if the file cannot be mapped.
+    private static LongBuffer getTotals(Context context) {
+        if (sTotals == null) {
+            RandomAccessFile file = null;
+            try {
+                file = new RandomAccessFile(new File(context.getFilesDir(), FILE_NAME), "rw");
+                ByteBuffer record = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                        HEADER_SIZE + COUNTERS * 8);
+                if (record.getInt(0) != FILE_VERSION) {
+                    // New, or another layout: start over.
+                    for (int i = 0; i < record.capacity(); i++) {
+                        record.put(i, (byte) 0);
+                    }
+                    record.putInt(0, FILE_VERSION);
+                }
+                record.putInt(4, COUNTERS);
+                record.position(HEADER_SIZE);
+                sTotals = record.slice().asLongBuffer();
+            }
+            catch (IOException e) {
+                Log.e(TAG, "getTotals~ could not map metrics", e);
+            }
+            finally {
+                // The mapping outlives the file.
+                close(file);
+            }
+        }
+        return sTotals;
+    }
+
+    private static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            }
+            catch (IOException e) {
+                // Ignored.
+            }
+        }
+    }
+}
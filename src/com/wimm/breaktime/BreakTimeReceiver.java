@@ -7,19 +7,34 @@ import static com.wimm.framework.service.SyncService.Intent.ACTION_NOTIFY_PREFS_
 import static com.wimm.framework.service.SyncService.Intent.EXTRA_MODIFIED_PREFS;
 
 import java.util.ArrayList;
+
+import com.wimm.breaktime.schedule.BreakAlarms;
+import com.wimm.breaktime.schedule.BreakSchedule;
+import com.wimm.breaktime.schedule.LocalClock;
 import com.wimm.framework.app.Notification;
 import com.wimm.framework.app.NotificationAgent;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.os.Process;
 import android.util.Log;
 
 /*
  * This is the receiver used to listen for sync preference changes (ACTION_NOTIFY_PREFS_MOD)
  * while the application is running. It is also used to listen for notifications request coming
  * from the application.This receiver also help to start off BreakTimeService when
- * device boot.
+ * device boot, and arms the following break from the stored BreakPlan after each
+ * notification or clock change.
+ *
+ * Broadcasts are handled in order on a shared background thread, so preference
+ * commits, the notification and the metrics file stay off the main thread the
+ * activity draws on. A partial wake lock is held from onReceive until the work
+ * is done, as the alarm's own only lasts until onReceive returns. This stands
+ * in for goAsync, which only came with API 11.
  */
 public class BreakTimeReceiver extends BroadcastReceiver {
     // For debugging purposes.
@@ -28,43 +43,239 @@ public class BreakTimeReceiver extends BroadcastReceiver {
     // Broadcast intents
     public static final String ACTION_POST_NOTIFICATION = "com.wimm.breaktime.action.POST_NOTIFICATION";
     public static final String EXTRA_NOTIFICATION_MESSAGE = "com.wimm.breaktime.extra.NOTIFICATION_MESSAGE";
+    public static final String EXTRA_FIRE_TIME = "com.wimm.breaktime.extra.FIRE_TIME";
+    public static final String EXTRA_TRIGGER_TIME = "com.wimm.breaktime.extra.TRIGGER_TIME";
+    public static final String EXTRA_WAKEUP = "com.wimm.breaktime.extra.WAKEUP";
+    // Bit set of the BreakTimeSettings streams due, the message covers them all.
+    public static final String EXTRA_STREAMS = "com.wimm.breaktime.extra.STREAMS";
+
+    // Remind of the last break again after EXTRA_SNOOZE_MINUTES.
+    public static final String ACTION_SNOOZE = "com.wimm.breaktime.action.SNOOZE";
+    public static final String EXTRA_SNOOZE_MINUTES = "com.wimm.breaktime.extra.SNOOZE_MINUTES";
+    public static final int DEFAULT_SNOOZE_MINUTES = 10;
+
+    // Debug broadcast logging the BreakTimeMetrics totals.
+    public static final String ACTION_DUMP_METRICS = "com.wimm.breaktime.action.DUMP_METRICS";
 
     // ID used for notifications
     private static final int ID = 1;
 
+    // Unseen breaks are only updated silently this many times in a row, and
+    // for at most this long after the last alert, before alerting again.
+    private static final int MAX_SILENT_POSTS = 2;
+    private static final long MAX_SILENT_MS = 2 * 60 * LocalClock.MS_PER_MIN;
+
+    // Shared by all deliveries of the process.
+    private static NotificationAgent sNotificationAgent;
+    private static Handler sHandler;
+    // Reference counted, held once per broadcast in flight.
+    private static PowerManager.WakeLock sWakeLock;
+
     @Override
-    public void onReceive(Context context, Intent intent) {
+    public void onReceive(Context context, final Intent intent) {
+        final long receivedNs = System.nanoTime();
+        final Context appContext = context.getApplicationContext();
+        final PowerManager.WakeLock wakeLock = getWakeLock(appContext);
+        wakeLock.acquire();
+        getHandler().post(new Runnable() {
+            public void run() {
+                try {
+                    handle(appContext, intent, receivedNs);
+                }
+                finally {
+                    wakeLock.release();
+                }
+            }
+        });
+        BreakTimeMetrics.recordReceive(System.nanoTime() - receivedNs);
+    }
+
+    // Handle a broadcast on the background thread, receivedNs being when
+    // onReceive got it.
+    private static void handle(Context context, Intent intent, long receivedNs) {
         String action = intent.getAction();
         if (action.equals(ACTION_NOTIFY_PREFS_MOD)) {
             ArrayList<String> modifiedPrefs = intent.getStringArrayListExtra(EXTRA_MODIFIED_PREFS);
             if(modifiedPrefs != null) {
+                // Refresh the shared snapshot before anyone reads it.
+                BreakTimeSettings.invalidate(context, modifiedPrefs);
+
                 Intent updateIntent = new Intent(BreakTimeActivity.ACTION_UPDATE_PREFS);
                 updateIntent.putStringArrayListExtra(EXTRA_MODIFIED_PREFS, modifiedPrefs);
                 context.sendBroadcast(updateIntent);
 
-                // Run service to re-register notification.
-                Intent serviceIntent = new Intent(BreakTimeService.SCHEDULE_NOTIFICATION);
-                context.startService(serviceIntent);
+                // Re-register notification off the main thread. A burst of
+                // changes queues a request per snapshot version and
+                // BreakTimeService drops all but the latest.
+                int version = BreakTimeSettings.isLoaded() ? BreakTimeSettings.get(context).getVersion()
+                        : BreakTimeService.ANY_CONFIG_VERSION;
+                context.startService(BreakTimeService.newScheduleIntent(version));
             }
             else {
                 Log.e(TAG, "onReceive~ received modified prefs intent but no prefs");
             }
         }
         else if (action.equals(ACTION_POST_NOTIFICATION)) {
-            // Preparing the notification strings.
-            String title = context.getString(R.string.notification_title);
-            String body = intent.getStringExtra(EXTRA_NOTIFICATION_MESSAGE);
+            long fireTime = intent.getLongExtra(EXTRA_FIRE_TIME, 0);
+            if (BreakScheduler.isFired(context, fireTime)) {
+                // The other alarm of the tolerance window already posted it.
+                return;
+            }
+            if (!BreakTimeSettings.getLastKnown(context).isEnableNotifications()) {
+                // Turned off after the alarm went off, BreakTimeService
+                // cancels or already cancelled it.
+                return;
+            }
+            long deliveredTime = System.currentTimeMillis();
+            boolean wakeup = intent.getBooleanExtra(EXTRA_WAKEUP, true);
+            BreakTimeMetrics.recordWakeup(fireTime, deliveredTime, wakeup);
+            int streams = intent.getIntExtra(EXTRA_STREAMS, 1 << BreakTimeSettings.STREAM_BREAK);
+            if (Integer.bitCount(streams) > 1) {
+                BreakTimeMetrics.recordStreamsMerged();
+            }
 
-            // Post the notification.
-            NotificationAgent na = new NotificationAgent(context);
-            na.notify(ID, new Notification(title, body, true));
+            // Skip the break if nobody is around to take it.
+            BreakHistory history = BreakHistory.get(context);
+            int presence = BreakPresence.check(context);
+            if (presence == BreakPresence.PRESENT) {
+                boolean silent = postNotification(context, intent.getStringExtra(EXTRA_NOTIFICATION_MESSAGE),
+                        history, deliveredTime, isWindowStart(context, fireTime));
+                BreakTimeMetrics.recordPosted(System.nanoTime() - receivedNs, silent);
+            }
+            else {
+                BreakTimeMetrics.recordSuppressed();
+            }
 
+            // Arm the following break from the stored plan, corrected for the
+            // lateness of this one. The plan is only recomputed once used up.
+            long triggerTime = intent.getLongExtra(EXTRA_TRIGGER_TIME, 0);
+            if (!wakeup) {
+                // Delivered by a non-wakeup alarm. Before the wake-up alarm
+                // was due, the device was awake anyway and the break shared
+                // its wake-up. Later, it is the alarm armed while nobody was
+                // around, delivered with the next wake-up instead of its own.
+                if (deliveredTime < triggerTime) {
+                    BreakTimeMetrics.recordCoalesced(deliveredTime - fireTime);
+                }
+                else {
+                    BreakTimeMetrics.recordWakeupAvoided();
+                }
+            }
+            if (!BreakScheduler.onDelivered(context, fireTime, streams, triggerTime, wakeup, deliveredTime,
+                    presence == BreakPresence.PRESENT)) {
+                BreakScheduler.requestSchedule(context);
+            }
+        }
+        else if (action.equals(Intent.ACTION_TIMEZONE_CHANGED)) {
+            // Local break times moved, only the plan is recomputed from the
+            // compiled schedule.
+            LocalClock.invalidate();
+            BreakScheduler.discardPlan(context);
+            BreakScheduler.requestSchedule(context);
+        }
+        else if (action.equals(Intent.ACTION_TIME_CHANGED)) {
+            // Planned fire times still hold, only an alarm the clock jumped
+            // past has to move to the next break. Set back before the plan
+            // or a break fired on a wrong date, it is computed anew.
+            if (!BreakScheduler.rearm(context)) {
+                BreakScheduler.requestSchedule(context);
+            }
+        }
+        else if (action.equals(ACTION_SNOOZE)) {
+            // Only a break posted lately and not snoozed yet is snoozed.
+            long now = System.currentTimeMillis();
+            BreakHistory history = BreakHistory.get(context);
+            int minutes = intent.getIntExtra(EXTRA_SNOOZE_MINUTES, DEFAULT_SNOOZE_MINUTES);
+            if (history != null && history.getSnoozableTime(now, BreakAlarms.SNOOZE_MAX_AGE_MS) > 0
+                    && BreakScheduler.snooze(context, BreakTimeSettings.getLastKnown(context),
+                            minutes * LocalClock.MS_PER_MIN)) {
+                // Snoozing counts as having seen the break.
+                history.snoozeLatest(now);
+                BreakTimeMetrics.recordSnooze();
+            }
+        }
+        else if (action.equals(ACTION_DUMP_METRICS)) {
+            Log.i(TAG, BreakTimeMetrics.dump(context));
         }
         else if (action.equals(Intent.ACTION_BOOT_COMPLETED)) {
-            // Run service to re-register notification.
-            Intent serviceIntent = new Intent(BreakTimeService.SCHEDULE_NOTIFICATION);
-            context.startService(serviceIntent);
+            // Re-register notification from the stored checkpoint. Only a stale
+            // one needs the service, which loads the settings in a cold process.
+            if (!BreakScheduler.restore(context)) {
+                BreakScheduler.requestSchedule(context);
+            }
+        }
+
+        // Keep what this wake-up cost, the process may be gone before the next one.
+        BreakTimeMetrics.flush(context);
+    }
+
+    // Post the break notification. While the previous break is still unseen
+    // it is only updated with a count, without vibrating or turning the
+    // screen on again, but at most MAX_SILENT_POSTS times and MAX_SILENT_MS
+    // after the last alert. The first break of a work window always alerts.
+    // Return true if posted silently.
+    private static boolean postNotification(Context context, String body, BreakHistory history, long deliveredTime,
+            boolean windowStart) {
+        // Preparing the notification strings.
+        String title = context.getString(R.string.notification_title);
+
+        int unseen = 1;
+        boolean silent = false;
+        if (history != null) {
+            silent = !windowStart && history.getUnacknowledgedCount() > 0
+                    && history.getSilentCount() < MAX_SILENT_POSTS
+                    && deliveredTime - history.getLastAlertTime() < MAX_SILENT_MS;
+            history.append(deliveredTime, (silent ? BreakHistory.FLAG_SILENT : 0)
+                    | (windowStart ? BreakHistory.FLAG_WINDOW_START : 0));
+            unseen = history.getUnacknowledgedCount();
+        }
+
+        if (unseen > 1) {
+            body = context.getString(R.string.notification_break_collapsed, body, unseen);
+        }
+        getNotificationAgent(context).notify(ID, new Notification(title, body, !silent));
+        return silent;
+    }
+
+    // Return true if the break planned at fireTime is the first of its work
+    // window, judged on the stream with the shortest interval, whose break
+    // comes first in every window.
+    private static boolean isWindowStart(Context context, long fireTime) {
+        BreakSchedule first = null;
+        for (BreakSchedule schedule : BreakTimeSettings.getLastKnown(context).getSchedules()) {
+            if (schedule != null && schedule.getBreakInterval() > 0
+                    && (first == null || schedule.getBreakInterval() < first.getBreakInterval())) {
+                first = schedule;
+            }
+        }
+        if (first == null || fireTime <= 0) {
+            return false;
+        }
+        long epochMinute = LocalClock.toEpochMinute(fireTime);
+        return first.isWindowStart(LocalClock.getDefault(epochMinute).minuteOfWeek(epochMinute));
+    }
+
+    private static synchronized Handler getHandler() {
+        if (sHandler == null) {
+            HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
         }
+        return sHandler;
     }
 
+    private static synchronized PowerManager.WakeLock getWakeLock(Context context) {
+        if (sWakeLock == null) {
+            PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            sWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        }
+        return sWakeLock;
+    }
+
+    private static synchronized NotificationAgent getNotificationAgent(Context context) {
+        if (sNotificationAgent == null) {
+            sNotificationAgent = new NotificationAgent(context.getApplicationContext());
+        }
+        return sNotificationAgent;
+    }
 }
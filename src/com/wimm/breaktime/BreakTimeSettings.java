@@ -0,0 +1,346 @@
+/*
+  * Copyright (C) 2012 WIMM Labs Incorporated
+ */
+package com.wimm.breaktime;
+
+import static com.wimm.breaktime.BreakTimeActivity.DEFAULT_BREAK_INTERVAL;
+import static com.wimm.breaktime.BreakTimeActivity.DEFAULT_DELIVERY_TOLERANCE;
+import static com.wimm.breaktime.BreakTimeActivity.DEFAULT_ENABLE_NOTIFICATIONS;
+import static com.wimm.breaktime.BreakTimeActivity.DEFAULT_END_WORK_TIME;
+import static com.wimm.breaktime.BreakTimeActivity.DEFAULT_EYE_BREAK_INTERVAL;
+import static com.wimm.breaktime.BreakTimeActivity.DEFAULT_STAND_UP_INTERVAL;
+import static com.wimm.breaktime.BreakTimeActivity.DEFAULT_START_WORK_TIME;
+import static com.wimm.breaktime.BreakTimeActivity.DEFAULT_WORK_DAYS_CODE;
+import static com.wimm.breaktime.BreakTimeActivity.DEFAULT_WORK_EXCEPTIONS;
+import static com.wimm.breaktime.BreakTimeActivity.DEFAULT_WORK_WINDOWS;
+
+import static com.wimm.breaktime.BreakTimeActivity.PREF_BREAK_INTERVAL;
+import static com.wimm.breaktime.BreakTimeActivity.PREF_DELIVERY_TOLERANCE;
+import static com.wimm.breaktime.BreakTimeActivity.PREF_ENABLE_NOTIFICATIONS;
+import static com.wimm.breaktime.BreakTimeActivity.PREF_END_WORK_TIME;
+import static com.wimm.breaktime.BreakTimeActivity.PREF_EYE_BREAK_INTERVAL;
+import static com.wimm.breaktime.BreakTimeActivity.PREF_STAND_UP_INTERVAL;
+import static com.wimm.breaktime.BreakTimeActivity.PREF_START_WORK_TIME;
+import static com.wimm.breaktime.BreakTimeActivity.PREF_WORK_DAYS_CODE;
+import static com.wimm.breaktime.BreakTimeActivity.PREF_WORK_EXCEPTIONS;
+import static com.wimm.breaktime.BreakTimeActivity.PREF_WORK_WINDOWS;
+
+import java.util.List;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.wimm.breaktime.schedule.BreakSchedule;
+import com.wimm.breaktime.schedule.WorkWeek;
+import com.wimm.framework.provider.SyncPreference;
+
+/*
+ * Immutable snapshot of the BreakTime sync preferences, shared by every
+ * component of the process. The snapshot is loaded once and afterwards only
+ * the keys reported in EXTRA_MODIFIED_PREFS are read again, so activity
+ * launches and service starts do not pay a SyncPreference read per key.
+ */
+public final class BreakTimeSettings {
+    // For debugging purposes.
+    private static final String TAG = BreakTimeSettings.class.getSimpleName();
+
+    // Local (not synced) copy of the last snapshot, readable without IPC.
+    private static final String CACHE_PREFS_NAME = "settings_cache";
+
+    // Reminder streams, indexes into getSchedules(). Each has its own interval
+    // within the same work windows and exception days.
+    public static final int STREAM_BREAK = 0;
+    public static final int STREAM_EYE_BREAK = 1;
+    public static final int STREAM_STAND_UP = 2;
+    public static final int STREAMS = 3;
+
+    // Current snapshot of the process, null until first loaded.
+    private static BreakTimeSettings sCurrent;
+
+    // Version given to the last snapshot swapped in.
+    private static int sLastVersion;
+
+    // Increases with every snapshot swapped in, so work queued against an
+    // older snapshot can tell that it has been superseded. 0 for snapshots
+    // that were never current.
+    private final int mVersion;
+
+    private final boolean mEnableNotifications;
+    private final int mStartWorkTimeInMinsSinceMidnight;
+    private final int mEndWorkTimeInMinsSinceMidnight;
+    private final int mWorkDaysCode; // 1(Mon - Fri), 2(Mon - Sat), 3(Mon - Sun)
+    private final int mBreakIntervalValueInMins;
+    private final String mWorkWindows; // empty to use the legacy values above
+    private final String mWorkExceptions;
+    private final int mDeliveryToleranceInMins;
+    private final int mEyeBreakIntervalInMins; // 0 to turn the stream off
+    private final int mStandUpIntervalInMins; // 0 to turn the stream off
+
+    // Parsed work windows, null for the legacy fields, and week timelines
+    // compiled on first use.
+    private WorkWeek mCustomWorkWeek;
+    private boolean mCustomWorkWeekParsed;
+    private BreakSchedule mSchedule;
+    private BreakSchedule[] mSchedules;
+
+    private BreakTimeSettings(int version, boolean enableNotifications, int startWorkTime, int endWorkTime,
+            int workDaysCode, int breakInterval, String workWindows, String workExceptions, int deliveryTolerance,
+            int eyeBreakInterval, int standUpInterval) {
+        mVersion = version;
+        mEnableNotifications = enableNotifications;
+        mStartWorkTimeInMinsSinceMidnight = startWorkTime;
+        mEndWorkTimeInMinsSinceMidnight = endWorkTime;
+        mWorkDaysCode = workDaysCode;
+        mBreakIntervalValueInMins = breakInterval;
+        mWorkWindows = workWindows;
+        mWorkExceptions = workExceptions;
+        mDeliveryToleranceInMins = deliveryTolerance;
+        mEyeBreakIntervalInMins = eyeBreakInterval;
+        mStandUpIntervalInMins = standUpInterval;
+    }
+
+    // Return the current snapshot, loading all preferences on first use.
+    public static synchronized BreakTimeSettings get(Context context) {
+        if (sCurrent == null) {
+            long start = System.nanoTime();
+            BreakTimeSettings loaded = new BreakTimeSettings(++sLastVersion,
+                    SyncPreference.getBoolean(context, PREF_ENABLE_NOTIFICATIONS, DEFAULT_ENABLE_NOTIFICATIONS),
+                    SyncPreference.getInt(context, PREF_START_WORK_TIME, DEFAULT_START_WORK_TIME),
+                    SyncPreference.getInt(context, PREF_END_WORK_TIME, DEFAULT_END_WORK_TIME),
+                    SyncPreference.getInt(context, PREF_WORK_DAYS_CODE, DEFAULT_WORK_DAYS_CODE),
+                    SyncPreference.getInt(context, PREF_BREAK_INTERVAL, DEFAULT_BREAK_INTERVAL),
+                    SyncPreference.getString(context, PREF_WORK_WINDOWS, DEFAULT_WORK_WINDOWS),
+                    SyncPreference.getString(context, PREF_WORK_EXCEPTIONS, DEFAULT_WORK_EXCEPTIONS),
+                    SyncPreference.getInt(context, PREF_DELIVERY_TOLERANCE, DEFAULT_DELIVERY_TOLERANCE),
+                    SyncPreference.getInt(context, PREF_EYE_BREAK_INTERVAL, DEFAULT_EYE_BREAK_INTERVAL),
+                    SyncPreference.getInt(context, PREF_STAND_UP_INTERVAL, DEFAULT_STAND_UP_INTERVAL));
+            BreakTimeMetrics.recordPrefReads(10, System.nanoTime() - start);
+            swap(context, loaded);
+        }
+        return sCurrent;
+    }
+
+    // Return the current snapshot if loaded, otherwise the last snapshot any
+    // process of the app saw, without touching SyncPreference. The result may
+    // be stale and is meant for drawing the first frame or checking the
+    // stored plan at boot.
+    public static synchronized BreakTimeSettings getLastKnown(Context context) {
+        if (sCurrent != null) {
+            return sCurrent;
+        }
+        SharedPreferences cache = context.getSharedPreferences(CACHE_PREFS_NAME, Context.MODE_PRIVATE);
+        return new BreakTimeSettings(0,
+                cache.getBoolean(PREF_ENABLE_NOTIFICATIONS, DEFAULT_ENABLE_NOTIFICATIONS),
+                cache.getInt(PREF_START_WORK_TIME, DEFAULT_START_WORK_TIME),
+                cache.getInt(PREF_END_WORK_TIME, DEFAULT_END_WORK_TIME),
+                cache.getInt(PREF_WORK_DAYS_CODE, DEFAULT_WORK_DAYS_CODE),
+                cache.getInt(PREF_BREAK_INTERVAL, DEFAULT_BREAK_INTERVAL),
+                cache.getString(PREF_WORK_WINDOWS, DEFAULT_WORK_WINDOWS),
+                cache.getString(PREF_WORK_EXCEPTIONS, DEFAULT_WORK_EXCEPTIONS),
+                cache.getInt(PREF_DELIVERY_TOLERANCE, DEFAULT_DELIVERY_TOLERANCE),
+                cache.getInt(PREF_EYE_BREAK_INTERVAL, DEFAULT_EYE_BREAK_INTERVAL),
+                cache.getInt(PREF_STAND_UP_INTERVAL, DEFAULT_STAND_UP_INTERVAL));
+    }
+
+    // Return true if a snapshot is in memory, so get() does no preference read.
+    public static synchronized boolean isLoaded() {
+        return sCurrent != null;
+    }
+
+    // Replace the current snapshot with one where only the modified keys
+    // are read again from SyncPreference.
+    public static synchronized void invalidate(Context context, List<String> modifiedPrefs) {
+        if (sCurrent == null) {
+            // Nothing cached yet, the next get() loads everything.
+            return;
+        }
+
+        boolean enableNotifications = sCurrent.mEnableNotifications;
+        int startWorkTime = sCurrent.mStartWorkTimeInMinsSinceMidnight;
+        int endWorkTime = sCurrent.mEndWorkTimeInMinsSinceMidnight;
+        int workDaysCode = sCurrent.mWorkDaysCode;
+        int breakInterval = sCurrent.mBreakIntervalValueInMins;
+        String workWindows = sCurrent.mWorkWindows;
+        String workExceptions = sCurrent.mWorkExceptions;
+        int deliveryTolerance = sCurrent.mDeliveryToleranceInMins;
+        int eyeBreakInterval = sCurrent.mEyeBreakIntervalInMins;
+        int standUpInterval = sCurrent.mStandUpIntervalInMins;
+        long start = System.nanoTime();
+        for (String key : modifiedPrefs) {
+            if (key.equals(PREF_ENABLE_NOTIFICATIONS)) {
+                enableNotifications = SyncPreference.getBoolean(context, PREF_ENABLE_NOTIFICATIONS, DEFAULT_ENABLE_NOTIFICATIONS);
+            }
+            else if (key.equals(PREF_START_WORK_TIME)) {
+                startWorkTime = SyncPreference.getInt(context, PREF_START_WORK_TIME, DEFAULT_START_WORK_TIME);
+            }
+            else if (key.equals(PREF_END_WORK_TIME)) {
+                endWorkTime = SyncPreference.getInt(context, PREF_END_WORK_TIME, DEFAULT_END_WORK_TIME);
+            }
+            else if (key.equals(PREF_WORK_DAYS_CODE)) {
+                workDaysCode = SyncPreference.getInt(context, PREF_WORK_DAYS_CODE, DEFAULT_WORK_DAYS_CODE);
+            }
+            else if (key.equals(PREF_BREAK_INTERVAL)) {
+                breakInterval = SyncPreference.getInt(context, PREF_BREAK_INTERVAL, DEFAULT_BREAK_INTERVAL);
+            }
+            else if (key.equals(PREF_WORK_WINDOWS)) {
+                workWindows = SyncPreference.getString(context, PREF_WORK_WINDOWS, DEFAULT_WORK_WINDOWS);
+            }
+            else if (key.equals(PREF_WORK_EXCEPTIONS)) {
+                workExceptions = SyncPreference.getString(context, PREF_WORK_EXCEPTIONS, DEFAULT_WORK_EXCEPTIONS);
+            }
+            else if (key.equals(PREF_DELIVERY_TOLERANCE)) {
+                deliveryTolerance = SyncPreference.getInt(context, PREF_DELIVERY_TOLERANCE, DEFAULT_DELIVERY_TOLERANCE);
+            }
+            else if (key.equals(PREF_EYE_BREAK_INTERVAL)) {
+                eyeBreakInterval = SyncPreference.getInt(context, PREF_EYE_BREAK_INTERVAL, DEFAULT_EYE_BREAK_INTERVAL);
+            }
+            else if (key.equals(PREF_STAND_UP_INTERVAL)) {
+                standUpInterval = SyncPreference.getInt(context, PREF_STAND_UP_INTERVAL, DEFAULT_STAND_UP_INTERVAL);
+            }
+            else {
+                Log.e(TAG, "unknown prefs detected");
+            }
+        }
+        BreakTimeMetrics.recordPrefReads(modifiedPrefs.size(), System.nanoTime() - start);
+        swap(context, new BreakTimeSettings(++sLastVersion, enableNotifications, startWorkTime, endWorkTime,
+                workDaysCode, breakInterval, workWindows, workExceptions, deliveryTolerance, eyeBreakInterval,
+                standUpInterval));
+    }
+
+    // Save the notifications toggle to SyncPreference, which will be pushed to
+    // the cloud during the next sync, and update the snapshot to match.
+    public static synchronized void setEnableNotifications(Context context, boolean enableNotifications) {
+        SyncPreference.putBoolean(context, PREF_ENABLE_NOTIFICATIONS, enableNotifications);
+        BreakTimeSettings current = get(context);
+        swap(context, new BreakTimeSettings(++sLastVersion, enableNotifications, current.mStartWorkTimeInMinsSinceMidnight,
+                current.mEndWorkTimeInMinsSinceMidnight, current.mWorkDaysCode, current.mBreakIntervalValueInMins,
+                current.mWorkWindows, current.mWorkExceptions, current.mDeliveryToleranceInMins,
+                current.mEyeBreakIntervalInMins, current.mStandUpIntervalInMins));
+    }
+
+    // Install a new current snapshot and keep a local copy for getLastKnown().
+    private static void swap(Context context, BreakTimeSettings settings) {
+        sCurrent = settings;
+        context.getSharedPreferences(CACHE_PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putBoolean(PREF_ENABLE_NOTIFICATIONS, settings.mEnableNotifications)
+                .putInt(PREF_START_WORK_TIME, settings.mStartWorkTimeInMinsSinceMidnight)
+                .putInt(PREF_END_WORK_TIME, settings.mEndWorkTimeInMinsSinceMidnight)
+                .putInt(PREF_WORK_DAYS_CODE, settings.mWorkDaysCode)
+                .putInt(PREF_BREAK_INTERVAL, settings.mBreakIntervalValueInMins)
+                .putString(PREF_WORK_WINDOWS, settings.mWorkWindows)
+                .putString(PREF_WORK_EXCEPTIONS, settings.mWorkExceptions)
+                .putInt(PREF_DELIVERY_TOLERANCE, settings.mDeliveryToleranceInMins)
+                .putInt(PREF_EYE_BREAK_INTERVAL, settings.mEyeBreakIntervalInMins)
+                .putInt(PREF_STAND_UP_INTERVAL, settings.mStandUpIntervalInMins)
+                .commit();
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public boolean isEnableNotifications() {
+        return mEnableNotifications;
+    }
+
+    public int getStartWorkTime() {
+        return mStartWorkTimeInMinsSinceMidnight;
+    }
+
+    public int getEndWorkTime() {
+        return mEndWorkTimeInMinsSinceMidnight;
+    }
+
+    public int getWorkDaysCode() {
+        return mWorkDaysCode;
+    }
+
+    public int getBreakInterval() {
+        return mBreakIntervalValueInMins;
+    }
+
+    public String getWorkWindows() {
+        return mWorkWindows;
+    }
+
+    public String getWorkExceptions() {
+        return mWorkExceptions;
+    }
+
+    // Minutes a break may be delivered early or late so its wake-up can be
+    // shared with others, 0 for exact delivery.
+    public int getDeliveryTolerance() {
+        return Math.max(0, mDeliveryToleranceInMins);
+    }
+
+    public int getEyeBreakInterval() {
+        return mEyeBreakIntervalInMins;
+    }
+
+    public int getStandUpInterval() {
+        return mStandUpIntervalInMins;
+    }
+
+    // Work windows in effect when set and well formed, otherwise null and the
+    // legacy start/end work time and work days code apply. Only parses the
+    // windows, cheap enough for the main thread unlike getSchedule().
+    public synchronized WorkWeek getCustomWorkWeek() {
+        if (!mCustomWorkWeekParsed) {
+            mCustomWorkWeekParsed = true;
+            if (mWorkWindows.length() > 0) {
+                try {
+                    mCustomWorkWeek = WorkWeek.parse(mWorkWindows);
+                }
+                catch (IllegalArgumentException e) {
+                    Log.e(TAG, "getCustomWorkWeek~ ignoring work windows", e);
+                }
+            }
+        }
+        return mCustomWorkWeek;
+    }
+
+    // Week timeline of breaks for these settings. The work windows replace
+    // the legacy start/end work time and work days code when set.
+    public synchronized BreakSchedule getSchedule() {
+        if (mSchedule == null) {
+            WorkWeek workWeek = getCustomWorkWeek();
+            if (workWeek == null) {
+                workWeek = WorkWeek.legacy(mStartWorkTimeInMinsSinceMidnight, mEndWorkTimeInMinsSinceMidnight, mWorkDaysCode);
+            }
+
+            int[] exceptionDays;
+            try {
+                exceptionDays = BreakSchedule.parseExceptionDays(mWorkExceptions);
+            }
+            catch (IllegalArgumentException e) {
+                Log.e(TAG, "getSchedule~ ignoring work exceptions", e);
+                exceptionDays = new int[0];
+            }
+            mSchedule = BreakSchedule.compile(workWeek, mBreakIntervalValueInMins, exceptionDays);
+        }
+        return mSchedule;
+    }
+
+    // Week timelines of all reminder streams, indexed by STREAM_BREAK and the
+    // like, null for streams turned off. Every stream follows the work
+    // windows and exception days of getSchedule().
+    public synchronized BreakSchedule[] getSchedules() {
+        if (mSchedules == null) {
+            BreakSchedule schedule = getSchedule();
+            BreakSchedule[] schedules = new BreakSchedule[STREAMS];
+            schedules[STREAM_BREAK] = schedule;
+            schedules[STREAM_EYE_BREAK] = compileStream(schedule, mEyeBreakIntervalInMins);
+            schedules[STREAM_STAND_UP] = compileStream(schedule, mStandUpIntervalInMins);
+            mSchedules = schedules;
+        }
+        return mSchedules;
+    }
+
+    private static BreakSchedule compileStream(BreakSchedule schedule, int interval) {
+        if (interval <= 0) {
+            return null;
+        }
+        return BreakSchedule.compile(schedule.getWorkWeek(), interval, schedule.getExceptionDays());
+    }
+}
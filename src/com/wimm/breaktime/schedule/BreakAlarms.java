@@ -0,0 +1,360 @@
+/*
+  * Copyright (C) 2012 WIMM Labs Incorporated
+ */
+package com.wimm.breaktime.schedule;
+
+/*
+ * The break alarm pipeline of a device: stores the BreakPlan, arms the alarm
+ * for the next break with the lateness correction and the tolerance window,
+ * records each delivered break and arms the following one, snoozes,
+ * restores the alarm after a reboot and re-arms it after a clock change.
+ *
+ * It only talks to the outside through a Store for the local preferences
+ * and a Device for the clock and the alarms, so BreakScheduler runs it on
+ * SharedPreferences and AlarmManager while BreakSimulator runs the very
+ * same code on a virtual clock. Not thread safe, callers serialize.
+ *
+ * Every reminder stream shares one wake-up alarm, plus a non-wakeup alarm
+ * opening the tolerance window when there is one. Alarms carry the fire
+ * time, trigger time and streams of their break.
+ */
+public final class BreakAlarms {
+    // Ids of the wake-up alarm and of the non-wakeup alarm opening the
+    // tolerance window.
+    public static final int WAKEUP_ALARM = 0;
+    public static final int WINDOW_ALARM = 1;
+
+    // Local preferences, SharedPreferences on a device.
+    public interface Store {
+        long getLong(String key, long defValue);
+        int getInt(String key, int defValue);
+        boolean getBoolean(String key, boolean defValue);
+        String getString(String key, String defValue);
+        boolean contains(String key);
+        Editor edit();
+    }
+
+    public interface Editor {
+        Editor putLong(String key, long value);
+        Editor putInt(String key, int value);
+        Editor putBoolean(String key, boolean value);
+        Editor putString(String key, String value);
+        Editor remove(String key);
+        void commit();
+    }
+
+    // Wall clock, time zone and AlarmManager of the device.
+    public interface Device {
+        long currentTimeMillis();
+
+        // Local clock covering the epoch minute.
+        LocalClock clock(long epochMinute);
+
+        // Set the alarm with the given id, replacing a pending one. A wake-up
+        // alarm wakes the device at time, the others are delivered with the
+        // first wake-up from then on.
+        void setAlarm(int id, long time, boolean wakeup, long fireTime, long triggerTime, int streams);
+
+        // Cancel the alarm with the given id if one is pending.
+        void cancelAlarm(int id);
+
+        boolean isAlarmSet(int id);
+    }
+
+    // Store keys.
+    static final String KEY_FINGERPRINT = "fingerprint";
+    static final String KEY_FIRE_TIMES = "fire_times";
+    static final String KEY_PLANNED_FROM = "planned_from";
+    static final String KEY_ARMED_TIME = "armed_time";
+    static final String KEY_LATENESS = "lateness";
+    static final String KEY_LAST_FIRED = "last_fired";
+    static final String KEY_TOLERANCE = "tolerance";
+    static final String KEY_PLAN_VERSION = "plan_version";
+    static final String KEY_ARMED_STREAMS = "armed_streams";
+    static final String KEY_ARMED_WAKEUP = "armed_wakeup";
+    static final String KEY_LAST_STREAMS = "last_streams";
+
+    // Format of the stored plan; a plan saved in another format is recomputed.
+    private static final int PLAN_VERSION = 2;
+
+    // Streams of a break armed before streams were stored.
+    private static final int DEFAULT_STREAMS = BreakPlan.SINGLE_STREAM;
+
+    // A break can be snoozed for this long after it fired.
+    public static final long SNOOZE_MAX_AGE_MS = 30 * LocalClock.MS_PER_MIN;
+
+    // Alarms are armed early by the measured delivery lateness, at most this much.
+    private static final long MAX_LATENESS_MS = 30000;
+
+    private final Store mStore;
+    private final Device mDevice;
+
+    // Last plan decoded, reused while the stored fire times are unchanged.
+    private BreakPlan mPlan;
+    private String mPlanFireTimes;
+
+    public BreakAlarms(Store store, Device device) {
+        mStore = store;
+        mDevice = device;
+    }
+
+    // Schedule the next break of the stream schedules (null for streams
+    // turned off), delivered within toleranceMs of its time. The stored plan
+    // is only recomputed when the schedules changed or it is used up, and
+    // the alarm is only re-armed when the next break moved. Return false if
+    // nothing is left to schedule, e.g. no work day selected, and the alarms
+    // were cancelled.
+    public boolean schedule(BreakSchedule[] schedules, long toleranceMs) {
+        if (mStore.getLong(KEY_TOLERANCE, 0) != toleranceMs) {
+            // Arm again with the new window.
+            mStore.edit().putLong(KEY_TOLERANCE, toleranceMs).remove(KEY_ARMED_TIME).commit();
+        }
+
+        int fingerprint = BreakPlan.fingerprint(schedules);
+        // An alarm armed early for the lateness correction or the tolerance
+        // window can be delivered before its break instant, which must not
+        // be planned again.
+        long now = mDevice.currentTimeMillis();
+        long after = Math.max(now, getLastFired(now));
+        BreakPlan plan = loadPlan();
+        if (plan == null || plan.getFingerprint() != fingerprint || plan.nextFireAfter(after) == BreakPlan.NO_FIRE) {
+            long afterEpochMinute = LocalClock.toEpochMinute(after);
+            plan = BreakPlan.compute(schedules, mDevice.clock(afterEpochMinute), afterEpochMinute,
+                    BreakPlan.DEFAULT_HORIZON_MINS, BreakPlan.DEFAULT_MAX_SIZE);
+            savePlan(plan);
+            mStore.edit().putLong(KEY_PLANNED_FROM, after).commit();
+        }
+        if (!armNext(after, true)) {
+            cancel();
+            return false;
+        }
+        return true;
+    }
+
+    // Return the stored plan, or null if none was saved.
+    public BreakPlan loadPlan() {
+        if (!mStore.contains(KEY_FIRE_TIMES)) {
+            return null;
+        }
+        String fireTimes = mStore.getString(KEY_FIRE_TIMES, null);
+        int fingerprint = mStore.getInt(KEY_FINGERPRINT, 0);
+        if (mPlan == null || mPlan.getFingerprint() != fingerprint || !fireTimes.equals(mPlanFireTimes)) {
+            mPlan = BreakPlan.decode(fingerprint, fireTimes);
+            mPlanFireTimes = fireTimes;
+        }
+        return mPlan;
+    }
+
+    public void savePlan(BreakPlan plan) {
+        String fireTimes = plan.encodeFireTimes();
+        mStore.edit()
+                .putInt(KEY_PLAN_VERSION, PLAN_VERSION)
+                .putInt(KEY_FINGERPRINT, plan.getFingerprint())
+                .putString(KEY_FIRE_TIMES, fireTimes)
+                .commit();
+        mPlan = plan;
+        mPlanFireTimes = fireTimes;
+    }
+
+    // Arm the alarm for the first planned break after both now and the given
+    // time. The alarm is left alone if it is already set for that break.
+    // Return false if the stored plan is used up and must be recomputed.
+    public boolean armNext(long after) {
+        return armNext(after, true);
+    }
+
+    private boolean armNext(long after, boolean attended) {
+        BreakPlan plan = loadPlan();
+        if (plan == null) {
+            return false;
+        }
+
+        long now = mDevice.currentTimeMillis();
+        long fireTime = plan.nextFireAfter(Math.max(now, after));
+        if (fireTime == BreakPlan.NO_FIRE) {
+            return false;
+        }
+
+        int streams = plan.streamsAt(fireTime);
+        if (mStore.getLong(KEY_ARMED_TIME, 0) == fireTime && mStore.getInt(KEY_ARMED_STREAMS, DEFAULT_STREAMS) == streams
+                && mStore.getBoolean(KEY_ARMED_WAKEUP, true) == attended && mDevice.isAlarmSet(WAKEUP_ALARM)) {
+            // Already armed for this break.
+            return true;
+        }
+        arm(fireTime, streams, attended, now);
+        return true;
+    }
+
+    // Return true if the break planned at fireTime was already delivered,
+    // e.g. when the other alarm of a tolerance window goes off.
+    public boolean isFired(long fireTime) {
+        return fireTime > 0 && fireTime <= mStore.getLong(KEY_LAST_FIRED, 0);
+    }
+
+    // A break alarm was delivered and the break posted, or skipped when
+    // nobody was there to take it. Record it and arm the following break,
+    // which does not wake the device either when the break was not attended.
+    // Return false if the stored plan is used up and must be recomputed.
+    public boolean onDelivered(long fireTime, int streams, long triggerTime, boolean wakeup, long deliveredTime,
+            boolean attended) {
+        recordDelivery(fireTime, streams, wakeup ? triggerTime : 0, deliveredTime);
+        return armNext(mStore.getLong(KEY_ARMED_TIME, 0), attended);
+    }
+
+    // Remember the break that fired and its streams and, for a wake-up
+    // alarm, fold its lateness into the correction applied to the following
+    // alarms. Large lateness, e.g. a delivery deferred by a clock change, is
+    // clamped rather than trusted. triggerTime is 0 for deliveries that did
+    // not wake the device.
+    private void recordDelivery(long fireTime, int streams, long triggerTime, long deliveredTime) {
+        Editor editor = mStore.edit().putLong(KEY_LAST_FIRED, fireTime).putInt(KEY_LAST_STREAMS, streams);
+        if (triggerTime > 0) {
+            long lateness = Math.max(0, Math.min(MAX_LATENESS_MS, deliveredTime - triggerTime));
+            long correction = mStore.getLong(KEY_LATENESS, 0);
+            // Moving average giving the new sample a weight of 1/4.
+            correction += (lateness - correction) / 4;
+            editor.putLong(KEY_LATENESS, correction);
+        }
+        editor.commit();
+    }
+
+    // Re-arm the alarm after a reboot from the checkpoint kept with the plan:
+    // its fingerprint and version, and the armed break. fingerprint is that
+    // of the schedules last seen by the app. A break missed while the device
+    // was off is armed in the past, so it is delivered right away and once,
+    // and the breaks after it follow from the plan. Return false if the
+    // checkpoint is missing or stale and a full schedule is needed.
+    public boolean restore(int fingerprint) {
+        long now = mDevice.currentTimeMillis();
+        getLastFired(now);
+        long fireTime = mStore.getLong(KEY_ARMED_TIME, 0);
+        if (fireTime == 0 || isFired(fireTime) || now < mStore.getLong(KEY_PLANNED_FROM, 0)
+                || mStore.getInt(KEY_PLAN_VERSION, 0) != PLAN_VERSION
+                || !mStore.contains(KEY_FINGERPRINT) || mStore.getInt(KEY_FINGERPRINT, 0) != fingerprint) {
+            return false;
+        }
+        arm(fireTime, mStore.getInt(KEY_ARMED_STREAMS, DEFAULT_STREAMS), true, now);
+        return true;
+    }
+
+    // Remind of the last break, with its streams, again after delayMs, unless
+    // the next planned break comes first. Only the alarm moves, the stored
+    // plan is kept and the breaks after the snooze are armed from it as usual.
+    // Return false and leave the alarm alone if no break fired within
+    // SNOOZE_MAX_AGE_MS, or if the reminder would fall outside the work
+    // windows of the stream schedules (null for streams turned off).
+    public boolean snooze(BreakSchedule[] schedules, long delayMs) {
+        long now = mDevice.currentTimeMillis();
+        long lastFired = mStore.getLong(KEY_LAST_FIRED, 0);
+        if (lastFired == 0 || now - lastFired > SNOOZE_MAX_AGE_MS) {
+            return false;
+        }
+        // A break delivered early, within its tolerance window or by the
+        // lateness correction, is snoozed from its planned time: the reminder
+        // must come after it, or it counts as fired and is dropped.
+        long after = Math.max(now, lastFired);
+        long snoozeTime = after + delayMs;
+        if (!isWorkTime(schedules, snoozeTime)) {
+            return false;
+        }
+        BreakPlan plan = loadPlan();
+        if (plan != null) {
+            long fireTime = plan.nextFireAfter(after);
+            if (fireTime != BreakPlan.NO_FIRE && fireTime <= snoozeTime) {
+                armNext(after, true);
+                return true;
+            }
+        }
+        arm(snoozeTime, mStore.getInt(KEY_LAST_STREAMS, DEFAULT_STREAMS), true, now);
+        return true;
+    }
+
+    // Every stream shares the work windows and exception days, any schedule
+    // of a stream turned on tells.
+    private boolean isWorkTime(BreakSchedule[] schedules, long time) {
+        long epochMinute = LocalClock.toEpochMinute(time);
+        for (BreakSchedule schedule : schedules) {
+            if (schedule != null) {
+                return schedule.isWorkTime(mDevice.clock(epochMinute), epochMinute);
+            }
+        }
+        return false;
+    }
+
+    // Arm the alarm again for the next planned break, e.g. after the clock was
+    // set and the armed break may now lie in the past. The last fired break
+    // is kept: an alarm delivered early, within the tolerance window or by
+    // the lateness correction, must not deliver its break again, see
+    // getLastFired() for one that fired on a wrong clock. A plan computed
+    // from a time the clock was set back before lacks the breaks in between.
+    // Return false if the stored plan is used up and must be recomputed.
+    public boolean rearm() {
+        long now = mDevice.currentTimeMillis();
+        long lastFired = getLastFired(now);
+        if (now < mStore.getLong(KEY_PLANNED_FROM, 0)) {
+            discardPlan();
+        }
+        mStore.edit().remove(KEY_ARMED_TIME).commit();
+        return armNext(lastFired, true);
+    }
+
+    // The last fired break, clamped to now when it lies further ahead than
+    // an early delivery can explain: it fired while the clock was set wrongly
+    // into the future, and would hold back every break until real time
+    // caught up with it. The plan, computed from that time, is dropped too.
+    private long getLastFired(long now) {
+        long lastFired = mStore.getLong(KEY_LAST_FIRED, 0);
+        if (lastFired > now + mStore.getLong(KEY_TOLERANCE, 0) + MAX_LATENESS_MS) {
+            lastFired = now;
+            mStore.edit().putLong(KEY_LAST_FIRED, now).remove(KEY_FINGERPRINT).remove(KEY_FIRE_TIMES).commit();
+        }
+        return lastFired;
+    }
+
+    // Drop the stored plan but keep the armed alarm until a new plan replaces
+    // it, e.g. when the local break times moved to another time zone.
+    public void discardPlan() {
+        mStore.edit().remove(KEY_FINGERPRINT).remove(KEY_FIRE_TIMES).commit();
+    }
+
+    // Cancel the armed alarms and drop the stored plan.
+    public void cancel() {
+        mDevice.cancelAlarm(WAKEUP_ALARM);
+        mDevice.cancelAlarm(WINDOW_ALARM);
+        mStore.edit().remove(KEY_FINGERPRINT).remove(KEY_FIRE_TIMES).remove(KEY_ARMED_TIME)
+                .remove(KEY_ARMED_STREAMS).remove(KEY_LAST_FIRED).remove(KEY_PLANNED_FROM).commit();
+    }
+
+    private void arm(long fireTime, int streams, boolean attended, long now) {
+        // Wall clock alarm at the end of the tolerance window, the exact
+        // break instant by default, moved earlier by the lateness alarms
+        // were delivered with so far.
+        long tolerance = mStore.getLong(KEY_TOLERANCE, 0);
+        long triggerTime = fireTime + tolerance - mStore.getLong(KEY_LATENESS, 0);
+        if (!attended) {
+            // Nobody took the last break. This one is delivered with the
+            // next wake-up instead, e.g. when the watch is unplugged or used
+            // again, and presence is checked anew.
+            mDevice.setAlarm(WAKEUP_ALARM, triggerTime, false, fireTime, triggerTime, streams);
+            mDevice.cancelAlarm(WINDOW_ALARM);
+        }
+        else {
+            mDevice.setAlarm(WAKEUP_ALARM, triggerTime, true, fireTime, triggerTime, streams);
+
+            // Windowed alarms only came with API 19. Instead a non-wakeup
+            // alarm opens the window: it is delivered when something else
+            // wakes the device within it, which spares the wake-up alarm
+            // above. It opens at most half way to the break, so breaks
+            // cannot bunch up.
+            if (tolerance > 0) {
+                long windowTime = Math.max(fireTime - tolerance, now + (fireTime - now) / 2);
+                mDevice.setAlarm(WINDOW_ALARM, windowTime, false, fireTime, triggerTime, streams);
+            }
+            else {
+                mDevice.cancelAlarm(WINDOW_ALARM);
+            }
+        }
+        mStore.edit().putLong(KEY_ARMED_TIME, fireTime).putInt(KEY_ARMED_STREAMS, streams)
+                .putBoolean(KEY_ARMED_WAKEUP, attended).commit();
+    }
+}
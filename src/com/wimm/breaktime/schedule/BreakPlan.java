@@ -0,0 +1,296 @@
+/*
+  * Copyright (C) 2012 WIMM Labs Incorporated
+ */
+package com.wimm.breaktime.schedule;
+
+import java.util.PriorityQueue;
+
+/*
+ * Immutable list of upcoming break fire times (wall clock, in ms) computed in
+ * one pass from a BreakSchedule. The plan is stored by BreakScheduler so that
+ * each break can arm the following one without recomputing the schedule.
+ *
+ * A plan may merge several reminder streams, each with its own schedule.
+ * Every fire time then carries the bit set of the streams due at it, so
+ * breaks of different streams falling on the same minute are one entry and
+ * a single alarm serves all streams.
+ */
+public final class BreakPlan {
+    // Returned when the plan holds no fire time after the requested time.
+    public static final long NO_FIRE = -1;
+
+    // Plan breaks up to a day ahead, bounded for short break intervals.
+    public static final int DEFAULT_HORIZON_MINS = BreakSchedule.MINS_PER_DAY;
+    public static final int DEFAULT_MAX_SIZE = 64;
+
+    // Streams of the fire times of a plan computed from a single schedule.
+    public static final int SINGLE_STREAM = 1;
+
+    // Local minutes a backward transition repeats at most, daylight saving
+    // shifts are an hour or less in practice.
+    private static final int MAX_REPEAT_MINS = 180;
+
+    private final int mFingerprint;
+    private final long[] mFireTimes;
+    // Bit set of the streams due at each fire time.
+    private final int[] mStreams;
+
+    public BreakPlan(int fingerprint, long[] fireTimes) {
+        this(fingerprint, fireTimes, null);
+    }
+
+    // streams may be null when every fire time is of the SINGLE_STREAM.
+    public BreakPlan(int fingerprint, long[] fireTimes, int[] streams) {
+        mFingerprint = fingerprint;
+        mFireTimes = fireTimes;
+        if (streams == null) {
+            streams = new int[fireTimes.length];
+            for (int i = 0; i < streams.length; i++) {
+                streams[i] = SINGLE_STREAM;
+            }
+        }
+        mStreams = streams;
+    }
+
+    // Compute the breaks following the epoch minute now, in local time of the
+    // clock. The first break is always planned, the following ones only while
+    // they fall within horizonMins of now. Breaks on days with a time zone
+    // transition keep their local time, none are planned on exception days.
+    public static BreakPlan compute(BreakSchedule schedule, LocalClock clock, long nowEpochMinute, int horizonMins, int maxSize) {
+        long[] fireTimes = new long[maxSize];
+        int size = 0;
+        long epochMinute = firstPassEnd(clock, nowEpochMinute);
+        while (size < maxSize) {
+            long fireMinute = nextFire(schedule, clock, epochMinute);
+            if (fireMinute == NO_FIRE || (size > 0 && fireMinute - nowEpochMinute > horizonMins)) {
+                break;
+            }
+            fireTimes[size++] = fireMinute * LocalClock.MS_PER_MIN;
+            epochMinute = fireMinute;
+        }
+
+        long[] result = new long[size];
+        System.arraycopy(fireTimes, 0, result, 0, size);
+        return new BreakPlan(schedule.fingerprint(), result);
+    }
+
+    // Epoch minute of the first break of the schedule after now, the first
+    // fire time compute() would plan, or NO_FIRE. For callers tracking a
+    // single break per user, see BreakRoster.
+    public static long nextFireMinute(BreakSchedule schedule, LocalClock clock, long nowEpochMinute) {
+        return nextFire(schedule, clock, firstPassEnd(clock, nowEpochMinute));
+    }
+
+    // The break following the epoch minute, skipping exception days.
+    private static long nextFire(BreakSchedule schedule, LocalClock clock, long epochMinute) {
+        while (true) {
+            int offset = clock.offsetAt(epochMinute);
+            int mins = schedule.minsToNextBreak(clock.minuteOfWeek(epochMinute));
+            if (mins == BreakSchedule.NO_BREAK) {
+                return NO_FIRE;
+            }
+            long fireMinute = clock.epochMinuteOf(epochMinute + offset + mins, offset);
+            long localDay = clock.localMinute(fireMinute) / BreakSchedule.MINS_PER_DAY;
+            if (!schedule.isExceptionDay(localDay)) {
+                return fireMinute;
+            }
+            // Skip the rest of the day, continue from its last minute.
+            long lastLocalMinute = (localDay + 1) * BreakSchedule.MINS_PER_DAY - 1;
+            epochMinute = Math.max(fireMinute, clock.epochMinuteOf(lastLocalMinute, clock.offsetAt(fireMinute)));
+        }
+    }
+
+    // The epoch minute now, or if now lies in the second pass of local times
+    // repeated by a backward transition, the last minute of the first pass:
+    // a repeated local time fires once, so its breaks already fired before
+    // the transition, whenever the plan is computed.
+    private static long firstPassEnd(LocalClock clock, long nowEpochMinute) {
+        int offset = clock.offsetAt(nowEpochMinute);
+        if (clock.offsetAt(nowEpochMinute - MAX_REPEAT_MINS) <= offset) {
+            return nowEpochMinute;
+        }
+        // Find the transition, the first minute of the current offset.
+        long low = nowEpochMinute - MAX_REPEAT_MINS;
+        long high = nowEpochMinute;
+        while (high - low > 1) {
+            long mid = low + (high - low) / 2;
+            if (clock.offsetAt(mid) == offset) {
+                high = mid;
+            }
+            else {
+                low = mid;
+            }
+        }
+        int repeated = clock.offsetAt(low) - offset;
+        return Math.max(nowEpochMinute, high + repeated - 1);
+    }
+
+    // Compute the plan of each stream, stream i having bit i, and merge them.
+    // Null schedules are streams turned off. The merged plan ends at the
+    // earliest last fire time over every stream plan that is not empty: each
+    // of them stops at the horizon or size, so past that time a stream may
+    // have breaks that are not planned, and the plan is recomputed there
+    // rather than miss them. A stream without any break does not end it.
+    public static BreakPlan compute(BreakSchedule[] schedules, LocalClock clock, long nowEpochMinute, int horizonMins, int maxSize) {
+        BreakPlan[] plans = new BreakPlan[schedules.length];
+        for (int i = 0; i < schedules.length; i++) {
+            if (schedules[i] != null) {
+                plans[i] = compute(schedules[i], clock, nowEpochMinute, horizonMins, maxSize);
+            }
+        }
+        return merge(fingerprint(schedules), plans);
+    }
+
+    // Identifies the schedules of all streams, null for those turned off.
+    public static int fingerprint(BreakSchedule[] schedules) {
+        int h = schedules.length;
+        for (BreakSchedule schedule : schedules) {
+            h = 31 * h + (schedule == null ? 0 : schedule.fingerprint());
+        }
+        return h;
+    }
+
+    // Position in the fire times of one stream plan, ordered by fire time.
+    private static final class Cursor implements Comparable<Cursor> {
+        final BreakPlan mPlan;
+        final int mStream;
+        int mIndex;
+
+        Cursor(BreakPlan plan, int stream) {
+            mPlan = plan;
+            mStream = stream;
+        }
+
+        long fireTime() {
+            return mPlan.mFireTimes[mIndex];
+        }
+
+        public int compareTo(Cursor other) {
+            long a = fireTime();
+            long b = other.fireTime();
+            return a < b ? -1 : (a == b ? 0 : 1);
+        }
+    }
+
+    // Merge single stream plans, plan i being stream i, null or empty for
+    // streams without breaks.
+    public static BreakPlan merge(int fingerprint, BreakPlan[] plans) {
+        PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(Math.max(1, plans.length));
+        long end = Long.MAX_VALUE;
+        int total = 0;
+        for (int i = 0; i < plans.length; i++) {
+            if (plans[i] != null && plans[i].mFireTimes.length > 0) {
+                queue.add(new Cursor(plans[i], i));
+                end = Math.min(end, plans[i].mFireTimes[plans[i].mFireTimes.length - 1]);
+                total += plans[i].mFireTimes.length;
+            }
+        }
+
+        long[] fireTimes = new long[total];
+        int[] streams = new int[total];
+        int size = 0;
+        while (!queue.isEmpty() && queue.peek().fireTime() <= end) {
+            long fireTime = queue.peek().fireTime();
+            int due = 0;
+            // Pop every stream due at this time, coincident breaks become one.
+            while (!queue.isEmpty() && queue.peek().fireTime() == fireTime) {
+                Cursor cursor = queue.poll();
+                due |= 1 << cursor.mStream;
+                if (++cursor.mIndex < cursor.mPlan.mFireTimes.length) {
+                    queue.add(cursor);
+                }
+            }
+            fireTimes[size] = fireTime;
+            streams[size] = due;
+            size++;
+        }
+
+        long[] resultTimes = new long[size];
+        int[] resultStreams = new int[size];
+        System.arraycopy(fireTimes, 0, resultTimes, 0, size);
+        System.arraycopy(streams, 0, resultStreams, 0, size);
+        return new BreakPlan(fingerprint, resultTimes, resultStreams);
+    }
+
+    public int getFingerprint() {
+        return mFingerprint;
+    }
+
+    // Return the first fire time strictly after time, or NO_FIRE.
+    public long nextFireAfter(long time) {
+        long[] fireTimes = mFireTimes;
+        int low = 0;
+        int high = fireTimes.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (fireTimes[mid] <= time) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low < fireTimes.length ? fireTimes[low] : NO_FIRE;
+    }
+
+    // Return the bit set of the streams due at fireTime, 0 if none is.
+    public int streamsAt(long fireTime) {
+        int low = 0;
+        int high = mFireTimes.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mFireTimes[mid] < fireTime) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low < mFireTimes.length && mFireTimes[low] == fireTime ? mStreams[low] : 0;
+    }
+
+    // Comma separated fire times, each followed by ":" and its streams
+    // unless only the SINGLE_STREAM is due, see decode().
+    public String encodeFireTimes() {
+        StringBuilder sb = new StringBuilder(mFireTimes.length * 14);
+        for (int i = 0; i < mFireTimes.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(mFireTimes[i]);
+            if (mStreams[i] != SINGLE_STREAM) {
+                sb.append(':').append(mStreams[i]);
+            }
+        }
+        return sb.toString();
+    }
+
+    // Rebuild a plan from its fingerprint and encodeFireTimes() output,
+    // null if the encoded times are malformed.
+    public static BreakPlan decode(int fingerprint, String encodedFireTimes) {
+        if (encodedFireTimes == null || encodedFireTimes.length() == 0) {
+            return new BreakPlan(fingerprint, new long[0]);
+        }
+        String[] parts = encodedFireTimes.split(",");
+        long[] fireTimes = new long[parts.length];
+        int[] streams = new int[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                String part = parts[i];
+                int colon = part.indexOf(':');
+                if (colon < 0) {
+                    fireTimes[i] = Long.parseLong(part);
+                    streams[i] = SINGLE_STREAM;
+                }
+                else {
+                    fireTimes[i] = Long.parseLong(part.substring(0, colon));
+                    streams[i] = Integer.parseInt(part.substring(colon + 1));
+                }
+            }
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+        return new BreakPlan(fingerprint, fireTimes, streams);
+    }
+}
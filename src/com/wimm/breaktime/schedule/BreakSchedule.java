@@ -0,0 +1,240 @@
+/*
+  * Copyright (C) 2012 WIMM Labs Incorporated
+ */
+package com.wimm.breaktime.schedule;
+
+import java.util.Arrays;
+
+/*
+ * Immutable week timeline of break minutes compiled from the work schedule
+ * preferences. Every break of the week is stored once, as a minute of the week
+ * in a sorted array, so finding the next break is a binary search instead of
+ * a walk through the work hour/work day rules.
+ *
+ * Minute 0 of the week is Sunday 00:00 local time, see LocalClock. Breaks
+ * follow the windows of a WorkWeek; a window belongs to the day it starts
+ * on, so a night shift starting on a work day runs into the next day even
+ * when that day is not a work day. Exception days are not part of the week
+ * timeline, BreakPlan skips them when planning.
+ *
+ * Like the rest of this package it has no Android dependencies, so the
+ * scheduling math can be measured and checked on a plain JVM.
+ */
+public final class BreakSchedule {
+    public static final int MINS_PER_DAY = 24 * 60;
+    public static final int MINS_PER_WEEK = 7 * MINS_PER_DAY;
+
+    // Returned when the schedule holds no break at all.
+    public static final int NO_BREAK = -1;
+
+    private static final int[] NO_EXCEPTION_DAYS = new int[0];
+
+    private final WorkWeek mWorkWeek;
+    private final int mBreakIntervalValueInMins;
+
+    // Sorted local days (days since 1970-01-01) on which no break fires.
+    private final int[] mExceptionDays;
+
+    // Sorted minutes of the week at which a break is due.
+    private final int[] mBreaks;
+
+    private BreakSchedule(WorkWeek workWeek, int breakInterval, int[] exceptionDays, int[] breaks) {
+        mWorkWeek = workWeek;
+        mBreakIntervalValueInMins = breakInterval;
+        mExceptionDays = exceptionDays;
+        mBreaks = breaks;
+    }
+
+    // Build the week timeline for the legacy preference values: one shift
+    // from startWorkTime to endWorkTime on each day of the work days code.
+    public static BreakSchedule compile(int startWorkTime, int endWorkTime, int workDaysCode, int breakInterval) {
+        return compile(WorkWeek.legacy(startWorkTime, endWorkTime, workDaysCode), breakInterval, NO_EXCEPTION_DAYS);
+    }
+
+    // Build the week timeline with a break every breakInterval minutes into
+    // each work window, ends included. exceptionDays must be sorted.
+    public static BreakSchedule compile(WorkWeek workWeek, int breakInterval, int[] exceptionDays) {
+        if (breakInterval <= 0) {
+            return new BreakSchedule(workWeek, breakInterval, exceptionDays, new int[0]);
+        }
+
+        int count = 0;
+        for (int w = 0; w < workWeek.size(); w++) {
+            count += (workWeek.endAt(w) - workWeek.startAt(w)) / breakInterval;
+        }
+
+        int[] breaks = new int[count];
+        int i = 0;
+        for (int w = 0; w < workWeek.size(); w++) {
+            int windowStart = workWeek.startAt(w);
+            int windowEnd = workWeek.endAt(w);
+            for (int minute = windowStart + breakInterval; minute <= windowEnd; minute += breakInterval) {
+                // Saturday night shifts wrap into the start of the week.
+                breaks[i++] = minute % MINS_PER_WEEK;
+            }
+        }
+
+        Arrays.sort(breaks);
+        return new BreakSchedule(workWeek, breakInterval, exceptionDays, dedupe(breaks));
+    }
+
+    // Parse exception dates written as comma separated yyyymmdd values into
+    // sorted days since 1970-01-01. Throws IllegalArgumentException on
+    // malformed input.
+    public static int[] parseExceptionDays(String dates) {
+        String[] entries = dates.split(",");
+        int[] days = new int[entries.length];
+        int count = 0;
+        for (String entry : entries) {
+            entry = entry.trim();
+            if (entry.length() == 0) {
+                continue;
+            }
+            int date;
+            try {
+                date = Integer.parseInt(entry);
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("bad exception date: " + entry);
+            }
+            int year = date / 10000;
+            int month = date / 100 % 100;
+            int day = date % 100;
+            if (entry.length() != 8 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+                throw new IllegalArgumentException("bad exception date: " + entry);
+            }
+            days[count++] = epochDay(year, month, day);
+        }
+
+        int[] result = new int[count];
+        System.arraycopy(days, 0, result, 0, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    // Number of days in the month (1-12) of a proleptic Gregorian year.
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            boolean leap = year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+            return leap ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    // Days since 1970-01-01 of a proleptic Gregorian date.
+    static int epochDay(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    // Return true if no break fires on the given local day (days since 1970-01-01).
+    public boolean isExceptionDay(long epochDay) {
+        int[] days = mExceptionDays;
+        int low = 0;
+        int high = days.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (days[mid] < epochDay) {
+                low = mid + 1;
+            }
+            else if (days[mid] > epochDay) {
+                high = mid - 1;
+            }
+            else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int[] dedupe(int[] sorted) {
+        int n = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (n == 0 || sorted[n - 1] != sorted[i]) {
+                sorted[n++] = sorted[i];
+            }
+        }
+        if (n == sorted.length) {
+            return sorted;
+        }
+        int[] result = new int[n];
+        System.arraycopy(sorted, 0, result, 0, n);
+        return result;
+    }
+
+    // Return the minutes from minuteOfWeek to the next break strictly after it,
+    // or NO_BREAK if the schedule is empty.
+    public int minsToNextBreak(int minuteOfWeek) {
+        int[] breaks = mBreaks;
+        if (breaks.length == 0) {
+            return NO_BREAK;
+        }
+
+        // First index whose break minute is greater than minuteOfWeek.
+        int low = 0;
+        int high = breaks.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (breaks[mid] <= minuteOfWeek) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+
+        if (low < breaks.length) {
+            return breaks[low] - minuteOfWeek;
+        }
+        // Past the last break of the week, wrap to the first one.
+        return breaks[0] + MINS_PER_WEEK - minuteOfWeek;
+    }
+
+    // Return true if minuteOfWeek lies within the first break interval of a
+    // work window, where the first break of the window is due.
+    public boolean isWindowStart(int minuteOfWeek) {
+        if (mBreakIntervalValueInMins <= 0) {
+            return false;
+        }
+        for (int w = 0; w < mWorkWeek.size(); w++) {
+            int start = mWorkWeek.startAt(w);
+            int since = ((minuteOfWeek - start) % MINS_PER_WEEK + MINS_PER_WEEK) % MINS_PER_WEEK;
+            if (since > 0 && since <= mBreakIntervalValueInMins && since <= mWorkWeek.endAt(w) - start) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Return true if the epoch minute falls within a work window, ends
+    // included, on a local day that is not an exception day.
+    public boolean isWorkTime(LocalClock clock, long epochMinute) {
+        long localDay = clock.localMinute(epochMinute) / MINS_PER_DAY;
+        return !isExceptionDay(localDay) && mWorkWeek.isWorkTime(clock.minuteOfWeek(epochMinute));
+    }
+
+    // Identifies the preference values this schedule was compiled from.
+    public int fingerprint() {
+        int h = mWorkWeek.hashCode();
+        h = 31 * h + mBreakIntervalValueInMins;
+        h = 31 * h + Arrays.hashCode(mExceptionDays);
+        return h;
+    }
+
+    public WorkWeek getWorkWeek() {
+        return mWorkWeek;
+    }
+
+    public int getBreakInterval() {
+        return mBreakIntervalValueInMins;
+    }
+
+    // Sorted exception days, shared and not to be modified.
+    public int[] getExceptionDays() {
+        return mExceptionDays;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+  * Copyright (C) 2012 WIMM Labs Incorporated
+ */
+package com.wimm.breaktime.schedule;
+
+import java.util.TimeZone;
+
+/*
+ * Maps epoch minutes to local time through a cached table of the time zone
+ * offset transitions around now, so the local minute of the week is plain
+ * integer arithmetic instead of a Calendar field computation. The table is
+ * rebuilt when a query falls outside of it, and must be dropped with
+ * invalidate() when the time zone or the clock changes.
+ */
+public final class LocalClock {
+    public static final long MS_PER_MIN = 60000;
+
+    // Epoch minute 0 (1970-01-01) was a Thursday, day 4 of the week.
+    private static final int EPOCH_MINUTE_OF_WEEK = 4 * BreakSchedule.MINS_PER_DAY;
+
+    // Time covered by a table around the time it was built for.
+    private static final int TABLE_PAST_MINS = BreakSchedule.MINS_PER_DAY;
+    private static final int TABLE_FUTURE_MINS = 2 * BreakSchedule.MINS_PER_WEEK;
+
+    // Zone offsets are sampled at this step, then transitions are searched
+    // to the minute. Real zones never change offset twice within it.
+    private static final int PROBE_STEP_MINS = 60;
+
+    // Clock of the default time zone, null until first used.
+    private static LocalClock sDefault;
+
+    private final TimeZone mZone;
+    private final long mFirstMinute;
+    private final long mLastMinute;
+
+    // mOffsets[i] applies from epoch minute mTransitions[i] on.
+    private final long[] mTransitions;
+    private final int[] mOffsets;
+
+    private LocalClock(TimeZone zone, long firstMinute, long lastMinute, long[] transitions, int[] offsets) {
+        mZone = zone;
+        mFirstMinute = firstMinute;
+        mLastMinute = lastMinute;
+        mTransitions = transitions;
+        mOffsets = offsets;
+    }
+
+    // Build the offset table of the zone around the given epoch minute.
+    public static LocalClock forZone(TimeZone zone, long epochMinute) {
+        long first = epochMinute - TABLE_PAST_MINS;
+        long last = epochMinute + TABLE_FUTURE_MINS;
+
+        // Count the transitions first so the table is allocated once.
+        int count = 1;
+        int offset = zoneOffset(zone, first);
+        for (long probe = first + PROBE_STEP_MINS; probe <= last; probe += PROBE_STEP_MINS) {
+            int probeOffset = zoneOffset(zone, probe);
+            if (probeOffset != offset) {
+                count++;
+                offset = probeOffset;
+            }
+        }
+
+        long[] transitions = new long[count];
+        int[] offsets = new int[count];
+        transitions[0] = first;
+        offsets[0] = zoneOffset(zone, first);
+        int i = 1;
+        for (long probe = first + PROBE_STEP_MINS; probe <= last && i < count; probe += PROBE_STEP_MINS) {
+            int probeOffset = zoneOffset(zone, probe);
+            if (probeOffset != offsets[i - 1]) {
+                // Find the first minute of the new offset.
+                long low = probe - PROBE_STEP_MINS + 1;
+                long high = probe;
+                while (low < high) {
+                    long mid = low + (high - low) / 2;
+                    if (zoneOffset(zone, mid) == offsets[i - 1]) {
+                        low = mid + 1;
+                    }
+                    else {
+                        high = mid;
+                    }
+                }
+                transitions[i] = low;
+                offsets[i] = probeOffset;
+                i++;
+            }
+        }
+        return new LocalClock(zone, first, last, transitions, offsets);
+    }
+
+    // Return a clock for the default time zone covering the given time.
+    public static synchronized LocalClock getDefault(long epochMinute) {
+        LocalClock clock = sDefault;
+        if (clock == null || !clock.covers(epochMinute)) {
+            clock = forZone(TimeZone.getDefault(), epochMinute);
+            sDefault = clock;
+        }
+        return clock;
+    }
+
+    // Drop the cached default clock, e.g. after TIMEZONE_CHANGED or TIME_SET.
+    public static synchronized void invalidate() {
+        sDefault = null;
+    }
+
+    public static long toEpochMinute(long timeInMillis) {
+        return floorDiv(timeInMillis, MS_PER_MIN);
+    }
+
+    public boolean covers(long epochMinute) {
+        return epochMinute >= mFirstMinute && epochMinute <= mLastMinute;
+    }
+
+    // Zone offset in minutes at the given epoch minute.
+    public int offsetAt(long epochMinute) {
+        if (!covers(epochMinute)) {
+            return zoneOffset(mZone, epochMinute);
+        }
+
+        long[] transitions = mTransitions;
+        int low = 0;
+        int high = transitions.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (transitions[mid] <= epochMinute) {
+                low = mid;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        return mOffsets[low];
+    }
+
+    // Local minute of the week (0 = Sunday 00:00) at the given epoch minute.
+    public int minuteOfWeek(long epochMinute) {
+        long local = epochMinute + offsetAt(epochMinute) + EPOCH_MINUTE_OF_WEEK;
+        return (int) (local - floorDiv(local, BreakSchedule.MINS_PER_WEEK) * BreakSchedule.MINS_PER_WEEK);
+    }
+
+    // Local minute (epoch minute shifted by the zone offset) at the given epoch minute.
+    public long localMinute(long epochMinute) {
+        return epochMinute + offsetAt(epochMinute);
+    }
+
+    // Epoch minute at which the local minute occurs. offsetHint is the offset
+    // in effect at the time the local minute was derived from; it picks the
+    // later occurrence of a repeated local time when already past the first.
+    // A local time skipped by a forward transition maps to the transition,
+    // the first local minute after the gap, so it cannot move past breaks
+    // that follow the gap.
+    public long epochMinuteOf(long localMinute, int offsetHint) {
+        long epochMinute = localMinute - offsetHint;
+        int offset = offsetAt(epochMinute);
+        if (offset != offsetHint) {
+            long other = localMinute - offset;
+            if (offsetAt(other) == offset) {
+                epochMinute = other;
+            }
+            else if (offset > offsetHint) {
+                // The transition lies in (other, epochMinute].
+                long low = other;
+                long high = epochMinute;
+                while (high - low > 1) {
+                    long mid = low + (high - low) / 2;
+                    if (offsetAt(mid) == offset) {
+                        high = mid;
+                    }
+                    else {
+                        low = mid;
+                    }
+                }
+                epochMinute = high;
+            }
+        }
+        return epochMinute;
+    }
+
+    private static int zoneOffset(TimeZone zone, long epochMinute) {
+        return (int) (zone.getOffset(epochMinute * MS_PER_MIN) / MS_PER_MIN);
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        if ((x % y != 0) && ((x < 0) != (y < 0))) {
+            q--;
+        }
+        return q;
+    }
+}
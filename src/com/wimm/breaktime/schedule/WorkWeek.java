@@ -0,0 +1,186 @@
+/*
+  * Copyright (C) 2012 WIMM Labs Incorporated
+ */
+package com.wimm.breaktime.schedule;
+
+import java.util.Arrays;
+
+/*
+ * Compact sorted index of the work windows of a week. Each window starts on
+ * a minute of the week (0 = Sunday 00:00) and may run past midnight or past
+ * the end of the week. Lookups are binary searches over primitive arrays, so
+ * they stay cheap with dozens of windows.
+ *
+ * Windows are written as "day:start-end" entries separated by commas, with
+ * day 0 (Sunday) to 6 (Saturday) and start/end in minutes since midnight,
+ * e.g. "1:540-720,1:780-1020". An end at or before the start means the
+ * window runs into the next day.
+ */
+public final class WorkWeek {
+    // Sorted by start; ends may exceed MINS_PER_WEEK for wrapping windows.
+    private final int[] mStarts;
+    private final int[] mEnds;
+
+    // mMaxEnds[i] is the largest end among windows 0..i, for overlap lookups.
+    private final int[] mMaxEnds;
+
+    private WorkWeek(int[] starts, int[] ends) {
+        mStarts = starts;
+        mEnds = ends;
+        mMaxEnds = new int[starts.length];
+        int maxEnd = Integer.MIN_VALUE;
+        for (int i = 0; i < starts.length; i++) {
+            maxEnd = Math.max(maxEnd, ends[i]);
+            mMaxEnds[i] = maxEnd;
+        }
+    }
+
+    // One shift from startWorkTime to endWorkTime on each day of the legacy
+    // work days code: 1(Mon - Fri), 2(Mon - Sat), 3(Mon - Sun).
+    public static WorkWeek legacy(int startWorkTime, int endWorkTime, int workDaysCode) {
+        int length = shiftLength(startWorkTime, endWorkTime);
+        int count = 0;
+        for (int day = 0; day < 7; day++) {
+            if (isWorkDay(workDaysCode, day)) {
+                count++;
+            }
+        }
+
+        int[] starts = new int[count];
+        int[] ends = new int[count];
+        int i = 0;
+        for (int day = 0; day < 7; day++) {
+            if (isWorkDay(workDaysCode, day)) {
+                starts[i] = day * BreakSchedule.MINS_PER_DAY + startWorkTime;
+                ends[i] = starts[i] + length;
+                i++;
+            }
+        }
+        return new WorkWeek(starts, ends);
+    }
+
+    // Parse windows written as described above. Throws IllegalArgumentException
+    // on malformed input.
+    public static WorkWeek parse(String windows) {
+        String[] entries = windows.split(",");
+        long[] packed = new long[entries.length];
+        int count = 0;
+        for (String entry : entries) {
+            entry = entry.trim();
+            if (entry.length() == 0) {
+                continue;
+            }
+            int colon = entry.indexOf(':');
+            int dash = entry.indexOf('-', colon + 1);
+            if (colon < 0 || dash < 0) {
+                throw new IllegalArgumentException("bad work window: " + entry);
+            }
+            int day = parseField(entry.substring(0, colon), 6, entry);
+            int start = parseField(entry.substring(colon + 1, dash), BreakSchedule.MINS_PER_DAY - 1, entry);
+            int end = parseField(entry.substring(dash + 1), BreakSchedule.MINS_PER_DAY, entry);
+            int windowStart = day * BreakSchedule.MINS_PER_DAY + start;
+            // Pack start and end to sort both by start in one pass.
+            packed[count++] = ((long) windowStart << 32) | (windowStart + shiftLength(start, end));
+        }
+
+        Arrays.sort(packed, 0, count);
+        int[] starts = new int[count];
+        int[] ends = new int[count];
+        for (int i = 0; i < count; i++) {
+            starts[i] = (int) (packed[i] >>> 32);
+            ends[i] = (int) packed[i];
+        }
+        return new WorkWeek(starts, ends);
+    }
+
+    private static int parseField(String field, int max, String entry) {
+        try {
+            int value = Integer.parseInt(field.trim());
+            if (value >= 0 && value <= max) {
+                return value;
+            }
+        }
+        catch (NumberFormatException e) {
+            // Reported below.
+        }
+        throw new IllegalArgumentException("bad work window: " + entry);
+    }
+
+    // Return true if the given day (0 = Sunday) is a work day for the work days code.
+    public static boolean isWorkDay(int workDaysCode, int dayOfWeek) {
+        if (dayOfWeek == 0) { // sun
+            return workDaysCode == 3;
+        }
+        else if (dayOfWeek == 6) { // sat
+            return workDaysCode == 2 || workDaysCode == 3;
+        }
+        return true;
+    }
+
+    // Length of a window in minutes, one ending at or before its start runs past midnight.
+    static int shiftLength(int startWorkTime, int endWorkTime) {
+        int length = endWorkTime - startWorkTime;
+        if (length <= 0) {
+            length += BreakSchedule.MINS_PER_DAY;
+        }
+        return length;
+    }
+
+    public int size() {
+        return mStarts.length;
+    }
+
+    // Start of window index as a minute of the week.
+    public int startAt(int index) {
+        return mStarts[index];
+    }
+
+    // End of window index, past MINS_PER_WEEK if it wraps into the next week.
+    public int endAt(int index) {
+        return mEnds[index];
+    }
+
+    // Return true if minuteOfWeek falls within a window, ends included.
+    public boolean isWorkTime(int minuteOfWeek) {
+        int n = mStarts.length;
+        if (n == 0) {
+            return false;
+        }
+        int last = lastStartAtOrBefore(minuteOfWeek);
+        if (last >= 0 && mMaxEnds[last] >= minuteOfWeek) {
+            return true;
+        }
+        // A window of last week may still be running.
+        return mMaxEnds[n - 1] >= minuteOfWeek + BreakSchedule.MINS_PER_WEEK;
+    }
+
+    // Index of the last window starting at or before minuteOfWeek, -1 if none.
+    private int lastStartAtOrBefore(int minuteOfWeek) {
+        int low = 0;
+        int high = mStarts.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mStarts[mid] <= minuteOfWeek) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low - 1;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(mStarts) + Arrays.hashCode(mEnds);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof WorkWeek)) {
+            return false;
+        }
+        WorkWeek other = (WorkWeek) o;
+        return Arrays.equals(mStarts, other.mStarts) && Arrays.equals(mEnds, other.mEnds);
+    }
+}